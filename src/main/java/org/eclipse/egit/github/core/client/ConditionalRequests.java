@@ -0,0 +1,108 @@
+package org.eclipse.egit.github.core.client;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+
+import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
+
+/**
+ * Conditional GET requests ('If-None-Match', 'If-Modified-Since') made via {@link GitHubClient},
+ * so authentication, rate limits tracking and errors handling are same as for regular requests.
+ * Located in the same package as {@link GitHubClient} to access its request helpers
+ */
+public class ConditionalRequests {
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    public static class Response {
+        /**
+         * Raw body, could be parsed again via {@link #parse}, null if resource was not modified
+         */
+        @Nullable public final byte[] content;
+        /**
+         * Parsed body, null if resource was not modified
+         */
+        @Nullable public final Object body;
+        @Nullable public final String etag;
+        @Nullable public final String lastModified;
+
+        private Response(@Nullable byte[] content, @Nullable Object body, @Nullable String etag, @Nullable String lastModified) {
+            this.content = content;
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        public boolean isNotModified() {
+            return content == null;
+        }
+    }
+
+    /**
+     * @return absolute url of request
+     */
+    @NotNull
+    public static String getUrl(@NotNull GitHubClient client, @NotNull GitHubRequest request) {
+        return client.createUri(request.generateUri());
+    }
+
+    /**
+     * @return new instance of body parsed from raw {@link Response#content} of response to {@code request}
+     */
+    @Nullable
+    public static Object parse(@NotNull GitHubClient client, @NotNull GitHubRequest request, @NotNull byte[] content) throws IOException {
+        return client.getBody(request, new ByteArrayInputStream(content));
+    }
+
+    /**
+     * Performs GET request with given validators of previously received response
+     *
+     * @return response with parsed body or not modified response
+     * @throws RequestException if server responded with error
+     */
+    @NotNull
+    public static Response get(@NotNull GitHubClient client,
+                               @NotNull GitHubRequest request,
+                               @Nullable String etag,
+                               @Nullable String lastModified) throws IOException {
+        final HttpURLConnection connection = client.createGet(request.generateUri());
+        final String accept = request.getResponseContentType();
+        if (accept != null) connection.setRequestProperty("Accept", accept);
+        if (etag != null) connection.setRequestProperty(HEADER_IF_NONE_MATCH, etag);
+        if (lastModified != null) connection.setRequestProperty(HEADER_IF_MODIFIED_SINCE, lastModified);
+
+        final int code = connection.getResponseCode();
+        client.updateRateLimits(connection);
+        if (code == HTTP_NOT_MODIFIED && (etag != null || lastModified != null)) {
+            return new Response(null, null, etag, lastModified);
+        }
+        if (client.isOk(code)) {
+            final byte[] content = readAll(client.getStream(connection));
+            return new Response(content, parse(client, request, content), connection.getHeaderField(HEADER_ETAG), connection.getHeaderField(HEADER_LAST_MODIFIED));
+        }
+        throw client.createException(client.getStream(connection), code, connection.getResponseMessage());
+    }
+
+    @NotNull
+    private static byte[] readAll(@NotNull InputStream stream) throws IOException {
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+}
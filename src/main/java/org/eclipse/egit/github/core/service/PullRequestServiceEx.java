@@ -19,6 +19,14 @@ public class PullRequestServiceEx extends PullRequestService {
     }
 
     public PullRequestEx getPullRequestEx(@NotNull IRepositoryIdProvider repository, int id) throws IOException {
+        return (PullRequestEx) client.get(createPullRequestExRequest(repository, id)).getBody();
+    }
+
+    /**
+     * @return request for {@link PullRequestEx}, could be used to make conditional request
+     */
+    @NotNull
+    public GitHubRequest createPullRequestExRequest(@NotNull IRepositoryIdProvider repository, int id) {
         final String repoId = getId(repository);
         StringBuilder uri = new StringBuilder(SEGMENT_REPOS);
         uri.append('/').append(repoId);
@@ -27,6 +35,6 @@ public class PullRequestServiceEx extends PullRequestService {
         GitHubRequest request = createRequest();
         request.setUri(uri);
         request.setType(PullRequestEx.class);
-        return (PullRequestEx) client.get(request).getBody();
+        return request;
     }
 }
\ No newline at end of file
@@ -2,15 +2,19 @@
 
 package org.eclipse.egit.github.core.service;
 
+import com.google.gson.reflect.TypeToken;
 import jetbrains.buildServer.serverSide.oauth.github.GitHubClientEx;
 import org.eclipse.egit.github.core.IRepositoryIdProvider;
 import org.eclipse.egit.github.core.RepositoryHook;
+import org.eclipse.egit.github.core.client.GitHubRequest;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
+import static org.eclipse.egit.github.core.client.IGitHubConstants.PARAM_PER_PAGE;
 import static org.eclipse.egit.github.core.client.IGitHubConstants.SEGMENT_HOOKS;
 import static org.eclipse.egit.github.core.client.IGitHubConstants.SEGMENT_REPOS;
 
@@ -19,6 +23,25 @@ public class RepositoryServiceEx extends RepositoryService {
         super(client);
     }
 
+    /**
+     * @return request for first page of repository hooks with at most {@code pageSize} elements,
+     * could be used to make conditional request
+     */
+    @NotNull
+    public GitHubRequest createHooksRequest(@NotNull IRepositoryIdProvider repository, int pageSize) {
+        String id = getId(repository);
+
+        StringBuilder uri = new StringBuilder(SEGMENT_REPOS);
+        uri.append('/').append(id);
+        uri.append(SEGMENT_HOOKS);
+        GitHubRequest request = createRequest();
+        request.setUri(uri);
+        request.setParams(Collections.singletonMap(PARAM_PER_PAGE, Integer.toString(pageSize)));
+        request.setType(new TypeToken<List<RepositoryHook>>() {
+        }.getType());
+        return request;
+    }
+
     public RepositoryHook enableHook(@NotNull IRepositoryIdProvider repository, long hookId) throws IOException {
         return patchHook(repository, hookId, Collections.<String, Object>singletonMap("active", true));
     }
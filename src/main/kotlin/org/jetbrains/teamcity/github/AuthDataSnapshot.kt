@@ -0,0 +1,107 @@
+package org.jetbrains.teamcity.github
+
+import org.jetbrains.teamcity.github.AuthDataStorage.AuthData
+import org.jetbrains.teamcity.github.AuthDataStorage.ConnectionInfo
+import org.jetbrains.teamcity.github.util.SnapshotInput
+import org.jetbrains.teamcity.github.util.SnapshotOutput
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.*
+
+/**
+ * Compact binary snapshot of [AuthDataStorage] data (version 2, replaces pretty-printed JSON).
+ *
+ * Repository server, owner and name and connection details are stored in string table,
+ * public and secret keys generated as UUIDs are stored as 16 bytes.
+ * Each entry is stored with version stamp of its last modification, removed entries are kept as version stamps (tombstones)
+ * for a while, so that nodes sharing the file could merge concurrent modifications of same entry, see AuthDataStorage.
+ */
+internal object AuthDataSnapshot {
+    const val VERSION = 2
+    private const val MAGIC = 0x54434741 // 'TCGA'
+
+    private const val KEY_UUID = 0
+    private const val KEY_STRING = 1
+
+    fun write(data: Collection<AuthData>, output: OutputStream, versions: Map<String, Long> = emptyMap(), removed: Map<String, Long> = emptyMap()) {
+        SnapshotOutput(output).use { out ->
+            out.writeHeader(MAGIC, VERSION)
+            out.writeInt(data.size)
+            for (it in data) {
+                out.writeLong(it.userId)
+                writeKey(out, it.public)
+                writeKey(out, it.secret)
+                val repository = it.repository
+                out.writeShared(repository?.server)
+                if (repository != null) {
+                    out.writeShared(repository.owner)
+                    out.writeShared(repository.name)
+                }
+                out.writeShared(it.connection.id)
+                out.writeShared(it.connection.projectExternalId)
+                out.writeLong(versions[it.public] ?: 0)
+            }
+            out.writeInt(removed.size)
+            for ((public, version) in removed) {
+                writeKey(out, public)
+                out.writeLong(version)
+            }
+        }
+    }
+
+    /**
+     * @param versions receives version stamps of entries
+     * @param removed receives version stamps of removed entries
+     * @return null if stream contains data of unsupported version
+     */
+    fun read(input: InputStream, versions: MutableMap<String, Long>? = null, removed: MutableMap<String, Long>? = null): List<AuthData>? {
+        SnapshotInput(input).use { inp ->
+            val version = inp.readHeader(MAGIC)
+            if (version != VERSION) return null
+            val count = inp.readInt()
+            val result = ArrayList<AuthData>(count)
+            // Same repository instance is shared by all its entries
+            val repositories = HashMap<GitHubRepositoryInfo, GitHubRepositoryInfo>()
+            for (i in 0 until count) {
+                val userId = inp.readLong()
+                val public = readKey(inp)
+                val secret = readKey(inp)
+                val server = inp.readShared()
+                val repository = if (server == null) null else GitHubRepositoryInfo(server, inp.readShared()!!, inp.readShared()!!).let { repositories.getOrPut(it) { it } }
+                val connection = ConnectionInfo(inp.readShared()!!, inp.readShared()!!)
+                val version = inp.readLong()
+                versions?.put(public, version)
+                result.add(AuthData(userId, public, secret, repository, connection))
+            }
+            for (i in 0 until inp.readInt()) {
+                val public = readKey(inp)
+                val version = inp.readLong()
+                removed?.put(public, version)
+            }
+            return result
+        }
+    }
+
+    private fun writeKey(out: SnapshotOutput, key: String) {
+        val uuid = try {
+            UUID.fromString(key).takeIf { it.toString() == key }
+        } catch (e: IllegalArgumentException) {
+            null
+        }
+        if (uuid != null) {
+            out.writeByte(KEY_UUID)
+            out.writeLong(uuid.mostSignificantBits)
+            out.writeLong(uuid.leastSignificantBits)
+        } else {
+            out.writeByte(KEY_STRING)
+            out.writeString(key)
+        }
+    }
+
+    private fun readKey(inp: SnapshotInput): String {
+        return when (inp.readByte()) {
+            KEY_UUID -> UUID(inp.readLong(), inp.readLong()).toString()
+            else -> inp.readString()
+        }
+    }
+}
@@ -11,15 +11,21 @@ import jetbrains.buildServer.serverSide.BuildServerListener
 import jetbrains.buildServer.serverSide.ServerPaths
 import jetbrains.buildServer.serverSide.TeamCityProperties
 import jetbrains.buildServer.serverSide.executors.ExecutorServices
+import jetbrains.buildServer.serverSide.impl.FileWatcher
 import jetbrains.buildServer.serverSide.impl.FileWatcherFactory
 import jetbrains.buildServer.serverSide.oauth.OAuthConnectionDescriptor
 import jetbrains.buildServer.users.SUser
 import jetbrains.buildServer.util.EventDispatcher
-import jetbrains.buildServer.util.FileUtil
 import org.jetbrains.teamcity.github.json.SimpleDateTypeAdapter
+import org.jetbrains.teamcity.github.util.StorageWarmUp
+import org.jetbrains.teamcity.github.util.backupLegacyFile
+import org.jetbrains.teamcity.github.util.withFileLock
+import org.jetbrains.teamcity.github.util.writeAtomically
 import java.io.File
 import java.util.*
 import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.locks.ReentrantReadWriteLock
 import kotlin.concurrent.read
 import kotlin.concurrent.write
@@ -27,12 +33,22 @@ import kotlin.math.max
 
 /**
  * AuthData storage
- * Backend: 'commit-hooks/auth-data.json' file under pluginData folder
+ * Backend: 'commit-hooks/auth-data.dat' file under pluginData folder (see AuthDataSnapshot).
+ * For large installations data could be split by repository server and owner into 'teamcity.commitHooks.authDataStorage.shards' shards
+ * ('commit-hooks/auth-data-shards-N/' folder), each shard has own file, file watcher and modification counter,
+ * so only modified shards are written and reloaded.
+ * Data stored in JSON format ('commit-hooks/auth-data.json') or with other number of shards is migrated automatically on server start
+ * Shards are loaded in background on server start, in parallel, see [isReady]
  *
  * It's safe to check modifications via modification counter since data values are unmodifiable
  *
+ * Each entry has version stamp of its last modification, removed entries are kept as stamped tombstones for
+ * 'teamcity.commitHooks.authDataStorage.tombstones.ttl.hours'. On file modification (e.g. by another node) entry is taken from file
+ * only if its stamp is newer than local one, so local not yet persisted changes are not lost.
+ * Shard file is written under file lock shared by nodes, after changes of other nodes are merged, so they're not overwritten
+ *
  * Synchronization:
- * Internal data store - ReentrantReadWriteLock
+ * Internal data store and its indexes (by repository and by user) - ReentrantReadWriteLock
  * File read/write (#load(), #persist()) - on object
  */
 class AuthDataStorage(executorServices: ExecutorServices,
@@ -69,28 +85,61 @@ class AuthDataStorage(executorServices: ExecutorServices,
         }
     }
 
+    /**
+     * Notified about removed or replaced entries, e.g. to drop data derived from their secrets.
+     * Called inside storage lock, so should be fast
+     */
+    interface RemovalListener {
+        fun removed(data: AuthData)
+    }
+
+    private val myRemovalListeners = CopyOnWriteArrayList<RemovalListener>()
+
     private val myData = TreeMap<String, AuthData>()
+    private val myByRepository = HashMap<RepoKey, MutableSet<String>>()
+    private val myByUser = HashMap<Long, MutableSet<String>>()
     private val myDataLock = ReentrantReadWriteLock()
-    private var myDataModificationCounter: Int = 0
-    private var myStoredDataModificationCounter: Int = 0
 
     private val myExecutor = executorServices.lowPriorityExecutorService
 
-    private val myFileWatcher = fileWatcherFactory.createSingleFilesWatcher(getStorageFile(), TeamCityProperties.getInteger("teamcity.commitHooks.authDataStorage.watchInterval", 5000))
+    private val myShards: List<Shard> = getShardsLayout(getShardsCount()).map { file ->
+        Shard(file, fileWatcherFactory.createSingleFilesWatcher(file, TeamCityProperties.getInteger("teamcity.commitHooks.authDataStorage.watchInterval", 5000)))
+    }
+
+    private val myWarmUp = StorageWarmUp("auth-data storage", myExecutor, LOG)
+
+    /**
+     * Whether stored auth data is loaded, until then entries are not found by public key
+     */
+    fun isReady(): Boolean = myWarmUp.isReady
 
     private val myServerListener = object : BuildServerAdapter() {
         override fun serverStartup() {
-            load()
+            myWarmUp.start({ migrate() }, myShards.map { shard ->
+                {
+                    shard.load()
 
-            myFileWatcher.registerListener {
-                load()
+                    shard.fileWatcher.registerListener {
+                        shard.load()
+                    }
+                    shard.fileWatcher.start()
+                }
+            }) {
+                val size = myDataLock.read { myData.size }
+                "$size ${size.pluralize("entry")} in ${myShards.size} ${myShards.size.pluralize("shard")}"
             }
-            myFileWatcher.start()
         }
 
         override fun serverShutdown() {
-            persist()
-            myFileWatcher.stop()
+            val timeout = TeamCityProperties.getLong("teamcity.commitHooks.authDataStorage.shutdown.awaitWarmUp.ms", 10000)
+            val ready = myWarmUp.await(timeout, TimeUnit.MILLISECONDS)
+            // Files of not yet loaded shards are merged with local changes on write, but only once migration is finished
+            val prepared = ready || myWarmUp.awaitPrepared(timeout, TimeUnit.MILLISECONDS)
+            if (!prepared) LOG.warn("Auth data storage is not migrated in $timeout ms, changes made since server startup are not saved")
+            for (shard in myShards) {
+                if (prepared) shard.flush()
+                shard.fileWatcher.stop()
+            }
         }
     }
 
@@ -102,6 +151,10 @@ class AuthDataStorage(executorServices: ExecutorServices,
         myServerEventDispatcher.removeListener(myServerListener)
     }
 
+    fun addRemovalListener(listener: RemovalListener) {
+        myRemovalListeners.add(listener)
+    }
+
     fun find(public: String): AuthData? {
         myDataLock.read {
             return myData[public]
@@ -119,34 +172,32 @@ class AuthDataStorage(executorServices: ExecutorServices,
     }
 
     fun store(data: AuthData) {
-        myDataLock.write {
-            myData.remove(data.public)
-            myData[data.public] = data
-            myDataModificationCounter++
+        val shards = myDataLock.write {
+            val old = removeImpl(data.public)
+            putImpl(data)
+            modified(listOfNotNull(old, data))
         }
         LOG.info("Stored auth data $data")
-        schedulePersisting()
+        schedulePersisting(shards)
     }
 
     fun remove(data: AuthData) {
-        myDataLock.write {
-            myData.remove(data.public)?.run {
-                myDataModificationCounter++
-            }
+        val shards = myDataLock.write {
+            modified(listOfNotNull(removeImpl(data.public)))
         }
         LOG.info("Removed auth data $data")
-        schedulePersisting()
+        schedulePersisting(shards)
     }
 
     fun remove(datas: Collection<AuthData>) {
         if (datas.isEmpty()) return
         val keysToRemove = datas.map { it.public }.toHashSet()
         if (keysToRemove.isEmpty()) return
-        myDataLock.write {
-            if (myData.keys.removeAll(keysToRemove)) myDataModificationCounter++
+        val shards = myDataLock.write {
+            modified(keysToRemove.mapNotNull { removeImpl(it) })
         }
         LOG.info("Removed auth data $datas")
-        schedulePersisting()
+        schedulePersisting(shards)
     }
 
     private fun generate(): Pair<String, String> {
@@ -156,114 +207,336 @@ class AuthDataStorage(executorServices: ExecutorServices,
     }
 
     fun removeAllForUser(userId: Long) {
-        while (true) {
-            val keysToRemove: Collection<String> =
-                    myDataLock.read {
-                        myData.entries.filter { it.value.userId == userId }.map { it.key }
-                    }
-            if (keysToRemove.isEmpty()) break
-            myDataLock.write {
-                myData.keys.removeAll(keysToRemove)
-                myDataModificationCounter++
-            }
-            schedulePersisting()
+        val shards = myDataLock.write {
+            val keysToRemove = myByUser[userId]?.toList() ?: emptyList()
+            modified(keysToRemove.mapNotNull { removeImpl(it) })
         }
+        schedulePersisting(shards)
         LOG.info("Removed all auth data related for user $userId")
     }
 
     fun delete(pubKey: String) {
-        myDataLock.write {
-            myData.remove(pubKey)?.run {
-                myDataModificationCounter++
-            }
+        val shards = myDataLock.write {
+            modified(listOfNotNull(removeImpl(pubKey)))
         }
         LOG.info("Removed auth data for pubkey $pubKey")
-        schedulePersisting()
+        schedulePersisting(shards)
     }
 
-    // NOTE: Should not be called inside myDataLock
-    private fun schedulePersisting() {
-        LOG.debug("Scheduling persisting of internal storage onto disk")
-        assert(!myDataLock.isWriteLockedByCurrentThread)
-        try {
-            myExecutor.submit { persist() }
-        } catch (e: RejectedExecutionException) {
-            persist()
-        }
+    // NOTE: Should be called inside myDataLock write lock
+    private fun putImpl(data: AuthData) {
+        myData[data.public] = data
+        getShard(data).publics.add(data.public)
+        data.repository?.let { myByRepository.getOrPut(it.toRepoKey()) { HashSet() }.add(data.public) }
+        myByUser.getOrPut(data.userId) { HashSet() }.add(data.public)
+    }
+
+    // NOTE: Should be called inside myDataLock write lock
+    private fun removeImpl(public: String): AuthData? {
+        val data = myData.remove(public) ?: return null
+        getShard(data).publics.remove(public)
+        data.repository?.let { removeFromIndex(myByRepository, it.toRepoKey(), public) }
+        removeFromIndex(myByUser, data.userId, public)
+        myRemovalListeners.forEach { it.removed(data) }
+        return data
     }
 
-    private fun persist() {
-        myFileWatcher.runActionWithDisabledObserver {
-            persistImpl()
+    private fun <K> removeFromIndex(index: MutableMap<K, MutableSet<String>>, key: K, public: String) {
+        val keys = index[key] ?: return
+        keys.remove(public)
+        if (keys.isEmpty()) index.remove(key)
+    }
+
+    /**
+     * Marks shards of added, replaced or removed entries as modified
+     * NOTE: Should be called inside myDataLock write lock
+     * @return modified shards
+     */
+    private fun modified(datas: Collection<AuthData>): Set<Shard> {
+        val byShard = datas.groupBy { getShard(it) }
+        for ((shard, list) in byShard) {
+            shard.modified(list.map { it.public })
         }
+        return byShard.keys
     }
 
-    @Synchronized private fun persistImpl() {
-        val (data, counter) = myDataLock.read {
-            if (myDataModificationCounter == myStoredDataModificationCounter) {
-                LOG.info("Storage is not modified, nothing to save on disk")
+    // NOTE: Should not be called inside myDataLock
+    private fun schedulePersisting(shards: Collection<Shard>) {
+        shards.forEach { it.schedulePersisting() }
+    }
+
+    private fun getStorageDir(): File {
+        return File(myServerPaths.pluginDataDirectory, "commit-hooks")
+    }
+
+    private fun getLegacyStorageFile(): File {
+        return File(getStorageDir(), "auth-data.json")
+    }
+
+    private fun getShardsCount(): Int {
+        return TeamCityProperties.getInteger("teamcity.commitHooks.authDataStorage.shards", 1).coerceAtLeast(1)
+    }
+
+    /**
+     * Single shard is stored in 'auth-data.dat', N shards are stored in 'auth-data-shards-N/auth-data.<i>.dat'
+     */
+    private fun getShardsLayout(count: Int): List<File> {
+        if (count == 1) return listOf(File(getStorageDir(), "auth-data.dat"))
+        val dir = File(getStorageDir(), "auth-data-shards-$count")
+        return (0 until count).map { File(dir, "auth-data.$it.dat") }
+    }
+
+    private fun getShard(data: AuthData): Shard {
+        if (myShards.size == 1) return myShards[0]
+        val hash = data.repository?.toRepoKey()?.ownerHash ?: data.public.hashCode()
+        return myShards[Math.floorMod(hash, myShards.size)]
+    }
+
+    /**
+     * Moves data stored in other layout (JSON file, single snapshot or different number of shards)
+     * into shards of current layout. Previous files are kept as backups
+     */
+    private fun migrate() {
+        if (myShards.any { it.file.isFile }) return
+
+        val current = myShards.map { it.file }.toSet()
+        val layouts = arrayListOf(getShardsLayout(1))
+        getStorageDir().listFiles { file -> file.isDirectory && file.name.startsWith("auth-data-shards-") }?.forEach { dir ->
+            dir.name.removePrefix("auth-data-shards-").toIntOrNull()?.takeIf { it > 1 }?.let { layouts.add(getShardsLayout(it)) }
+        }
+        val sources = layouts.flatten().filter { it !in current && it.isFile }
+
+        val data = HashMap<String, AuthData>()
+        val legacyFile = getLegacyStorageFile()
+        if (sources.isEmpty()) {
+            if (!legacyFile.isFile) return
+            try {
+                legacyFile.reader(Charsets.UTF_8).buffered().use {
+                    gson.fromJson<Map<String, AuthData>>(it, ourDataTypeToken.type)
+                }?.let { data.putAll(it) }
+            } catch(e: Exception) {
+                LOG.warnAndDebugDetails("Cannot read auth-data from file '${legacyFile.absolutePath}'", e)
                 return
             }
-            TreeMap(myData) to myDataModificationCounter
+        }
+        for (file in sources) {
+            try {
+                val stored = file.inputStream().use { AuthDataSnapshot.read(it) }
+                if (stored == null) {
+                    LOG.warn("Stored auth-data in file '${file.absolutePath}' has unsupported version")
+                } else {
+                    stored.associateByTo(data) { it.public }
+                }
+            } catch(e: Exception) {
+                LOG.warnAndDebugDetails("Cannot read auth-data from file '${file.absolutePath}'", e)
+            }
         }
 
-        LOG.info("Persisting internal storage onto disk, MC=$counter, SMC=$myStoredDataModificationCounter")
-
-        val file = getStorageFile()
-
+        val byShard = data.values.groupBy { getShard(it) }
         try {
-            FileUtil.createParentDirs(file)
-            val writer = file.writer(Charsets.UTF_8).buffered()
-            writer.use {
-                gson.toJson(data, ourDataTypeToken.type, it)
+            for (shard in myShards) {
+                writeAtomically(shard.file) {
+                    AuthDataSnapshot.write(byShard[shard].orEmpty(), it)
+                }
             }
-            myDataLock.write { myStoredDataModificationCounter = counter }
         } catch (e: Exception) {
-            LOG.warnAndDebugDetails("Cannot write auth-data to file '${file.absolutePath}'", e)
+            LOG.warnAndDebugDetails("Cannot write auth-data to ${myShards.size} ${myShards.size.pluralize("shard")} under '${getStorageDir().absolutePath}'", e)
+            return
         }
+        sources.forEach { backupLegacyFile(it) }
+        backupLegacyFile(legacyFile)
+        LOG.info("Migrated ${data.size} auth data ${data.size.pluralize("entry")} to ${myShards.size} ${myShards.size.pluralize("shard")} of version ${AuthDataSnapshot.VERSION} format")
     }
 
-    @Synchronized private fun load(): Boolean {
-        val file = getStorageFile()
+    /**
+     * Part of storage with own file, file watcher and modification counters.
+     * Entries are distributed between shards by repository server and owner, see 'teamcity.commitHooks.authDataStorage.shards'
+     */
+    private inner class Shard(val file: File, val fileWatcher: FileWatcher) {
+        // Held by node which writes or loads shard file, see withFileLock
+        private val lockFile = File(file.path + ".lock")
+
+        // NOTE: Counters, unsaved changes, version stamps and public keys should be accessed inside myDataLock
+        private var myModificationCounter: Int = 0
+        private var myStoredModificationCounter: Int = 0
+        // Public key -> modification counter of not yet persisted local change
+        private val myUnsaved = HashMap<String, Int>()
+        // Public key -> version stamp of entry
+        private val myVersions = HashMap<String, Long>()
+        // Public key -> version stamp of removal
+        private val myRemoved = HashMap<String, Long>()
+        // Public keys of entries of this shard, so that shard is persisted and reloaded without scanning all entries
+        val publics = HashSet<String>()
+
+        // NOTE: Should be called inside myDataLock write lock
+        fun modified(publics: Collection<String>) {
+            myModificationCounter++
+            for (public in publics) {
+                myUnsaved[public] = myModificationCounter
+                val version = WebHooksStorage.nextVersion(myVersions[public] ?: myRemoved[public] ?: 0)
+                if (public in this.publics) {
+                    myVersions[public] = version
+                    myRemoved.remove(public)
+                } else {
+                    // Removed or moved to another shard
+                    myRemoved[public] = version
+                    myVersions.remove(public)
+                }
+            }
+        }
 
-        val map: Map<String, AuthData>?
-        try {
-            FileUtil.createParentDirs(file)
-            if (!file.isFile) return false
-            map = file.reader(Charsets.UTF_8).buffered().use {
-                gson.fromJson<Map<String, AuthData>>(it, ourDataTypeToken.type)
+        // NOTE: Should not be called inside myDataLock
+        fun schedulePersisting() {
+            LOG.debug("Scheduling persisting of internal storage onto disk")
+            assert(!myDataLock.isWriteLockedByCurrentThread)
+            try {
+                myExecutor.submit { persist() }
+            } catch (e: RejectedExecutionException) {
+                persist()
             }
-        } catch(e: Exception) {
-            LOG.warnAndDebugDetails("Cannot read auth-data from file '${file.absolutePath}'", e)
-            return false
         }
 
-        if (map == null) {
-            LOG.warn("Stored map is null")
-            return false
+        fun persist() {
+            if (!myWarmUp.isReady) {
+                // Migration could be not finished yet, also shard file would be read once more by loading
+                myWarmUp.whenReady { persist() }
+                return
+            }
+            flush()
         }
 
-        LOG.info("Loaded ${map.size} elements into internal storage from disk")
+        /**
+         * Writes shard file synchronously, stored entries which are not loaded yet are kept since file is merged on write
+         */
+        fun flush() {
+            fileWatcher.runActionWithDisabledObserver {
+                persistImpl()
+            }
+        }
 
-        myDataLock.write {
-            myData.clear()
-            myData.putAll(map)
-            val counter = max(myDataModificationCounter, myStoredDataModificationCounter) + 1
-            myDataModificationCounter = counter
-            myStoredDataModificationCounter = counter
+        @Synchronized private fun persistImpl() {
+            val modified = myDataLock.read { myModificationCounter != myStoredModificationCounter }
+            if (!modified) {
+                LOG.info("Storage is not modified, nothing to save on disk")
+                return
+            }
+
+            withFileLock(lockFile) {
+                // File could be modified by other nodes since last load, their changes should not be overwritten
+                loadImpl()
+
+                val ttl = TimeUnit.HOURS.toMillis(TeamCityProperties.getLong("teamcity.commitHooks.authDataStorage.tombstones.ttl.hours", 24))
+                val now = System.currentTimeMillis()
+                val (data, counter) = myDataLock.write {
+                    myRemoved.values.removeIf { it < now - ttl }
+                    Triple(publics.mapNotNull { myData[it] }, HashMap(myVersions), HashMap(myRemoved)) to myModificationCounter
+                }
+
+                LOG.info("Persisting internal storage onto disk, MC=$counter, SMC=$myStoredModificationCounter")
+
+                try {
+                    writeAtomically(file) {
+                        AuthDataSnapshot.write(data.first, it, data.second, data.third)
+                    }
+                    myDataLock.write {
+                        myStoredModificationCounter = counter
+                        myUnsaved.values.removeIf { it <= counter }
+                    }
+                } catch (e: Exception) {
+                    LOG.warnAndDebugDetails("Cannot write auth-data to file '${file.absolutePath}'", e)
+                }
+            }
+        }
+
+        @Synchronized fun load(): Boolean {
+            return withFileLock(lockFile) { loadImpl() }
         }
-        return true
-    }
 
-    private fun getStorageFile(): File {
-        return File(myServerPaths.pluginDataDirectory, "commit-hooks/auth-data.json")
+        private fun loadImpl(): Boolean {
+            if (!file.isFile) return false
+
+            val map: Map<String, AuthData>?
+            val versions = HashMap<String, Long>()
+            val removedVersions = HashMap<String, Long>()
+            try {
+                map = file.inputStream().use { AuthDataSnapshot.read(it, versions, removedVersions) }?.associateBy { it.public }
+            } catch(e: Exception) {
+                LOG.warnAndDebugDetails("Cannot read auth-data from file '${file.absolutePath}'", e)
+                return false
+            }
+
+            if (map == null) {
+                LOG.warn("Stored map is null or has unsupported version")
+                return false
+            }
+
+            var added = 0
+            var removed = 0
+            var updated = 0
+            myDataLock.write {
+                val newer = ArrayList<String>()
+                for (public in map.keys + removedVersions.keys + publics + myRemoved.keys) {
+                    val loadedData = map[public]
+                    val loadedVersion = (if (loadedData != null) versions[public] else removedVersions[public]) ?: 0
+                    val localVersion = myVersions[public] ?: myRemoved[public] ?: 0
+                    val currentData = myData[public]?.takeIf { public in publics }
+                    if (loadedData == null && !removedVersions.containsKey(public)) {
+                        // Unknown to file: either not yet persisted local change or removed so long ago that tombstone is dropped
+                        if (myUnsaved.containsKey(public)) continue
+                        if (currentData == null) {
+                            myRemoved.remove(public)
+                            continue
+                        }
+                    } else if (loadedVersion < localVersion || (loadedVersion == localVersion && myUnsaved.containsKey(public))) {
+                        // Local change is newer, should be written
+                        if (loadedData != currentData && !myUnsaved.containsKey(public)) newer.add(public)
+                        continue
+                    }
+                    myUnsaved.remove(public)
+                    if (loadedData != null) {
+                        myVersions[public] = loadedVersion
+                        myRemoved.remove(public)
+                    } else {
+                        myVersions.remove(public)
+                        if (removedVersions.containsKey(public)) myRemoved[public] = loadedVersion else myRemoved.remove(public)
+                    }
+                    if (loadedData == currentData) continue
+                    if (currentData != null) removeImpl(public)
+                    if (loadedData != null) putImpl(loadedData)
+                    when {
+                        currentData == null -> added++
+                        loadedData == null -> removed++
+                        else -> updated++
+                    }
+                }
+                newer.forEach { myUnsaved[it] = myModificationCounter }
+                val counter = max(myModificationCounter, myStoredModificationCounter) + 1
+                myModificationCounter = counter
+                // Local changes should be stored
+                myStoredModificationCounter = if (myUnsaved.isNotEmpty()) counter - 1 else counter
+            }
+
+            LOG.info("Loaded ${map.size} elements from '${file.absolutePath}': $added added, $removed removed, $updated updated")
+            return true
+        }
     }
 
     fun findAllForRepository(repository: GitHubRepositoryInfo): List<AuthData> {
-        return myData.values.filter { it.repository == repository }
+        myDataLock.read {
+            // Index is case-insensitive
+            return myByRepository[repository.toRepoKey()]?.mapNotNull { public -> myData[public]?.takeIf { it.repository == repository } } ?: emptyList()
+        }
+    }
+
+    fun findAllForUser(userId: Long): List<AuthData> {
+        myDataLock.read {
+            return myByUser[userId]?.mapNotNull { myData[it] } ?: emptyList()
+        }
     }
 
     fun getAll(): Collection<AuthData> {
-        return ArrayList(myData.values)
+        myDataLock.read {
+            return ArrayList(myData.values)
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,152 @@
+package org.jetbrains.teamcity.github
+
+import com.google.common.collect.Interners
+import org.apache.commons.codec.binary.Hex
+import java.util.*
+
+/**
+ * Compact map of branch name to last known revision of a hook.
+ *
+ * Pull request refs ('refs/pull/N/head' and 'refs/pull/N/merge') are stored as numbers,
+ * other branch names are interned, sha1 revisions are stored as 20 bytes.
+ * Number of entries is limited: least recently updated ones are evicted once [maxSize] is exceeded.
+ *
+ * Not thread safe, guarded by owning [WebHookInfo]
+ */
+internal class BranchRevisions(private val maxSize: Int) {
+    companion object {
+        private const val PULL_PREFIX = "refs/pull/"
+        private const val HEAD = 0L
+        private const val MERGE = 1L
+
+        private val ourNames = Interners.newWeakInterner<String>()
+
+        // Estimated sizes of JVM objects with compressed oops
+        private const val ENTRY_SIZE = 40
+        private const val LONG_SIZE = 16
+        private const val SHA1_SIZE = 40
+
+        private fun toKey(branch: String): Any {
+            if (branch.startsWith(PULL_PREFIX)) {
+                val kind = when {
+                    branch.endsWith("/head") -> HEAD
+                    branch.endsWith("/merge") -> MERGE
+                    else -> null
+                }
+                val end = branch.lastIndexOf('/')
+                if (kind != null && end > PULL_PREFIX.length) {
+                    val text = branch.substring(PULL_PREFIX.length, end)
+                    val number = text.toLongOrNull()
+                    // Only canonical numbers, so that name is restored as is
+                    if (number != null && number in 0..(Long.MAX_VALUE shr 1) && number.toString() == text) return (number shl 1) or kind
+                }
+            }
+            return ourNames.intern(branch)
+        }
+
+        private fun toBranch(key: Any): String {
+            if (key !is Long) return key as String
+            return PULL_PREFIX + (key shr 1) + (if (key and 1L == HEAD) "/head" else "/merge")
+        }
+
+        private fun toValue(revision: String): Any {
+            if (revision.length == 40 && revision.all { it in '0'..'9' || it in 'a'..'f' }) {
+                return Hex.decodeHex(revision.toCharArray())
+            }
+            return revision
+        }
+
+        private fun toRevision(value: Any): String {
+            if (value is ByteArray) return String(Hex.encodeHex(value))
+            return value as String
+        }
+
+        /**
+         * Compares stored values, [other] should be made via [toValue] so that sha1 revisions are compared as bytes
+         */
+        private fun isSame(value: Any, other: Any): Boolean {
+            if (value is ByteArray && other is ByteArray) return value.contentEquals(other)
+            return value == other
+        }
+    }
+
+    // Insertion order is update order: entry is re-inserted on each update
+    private val myRevisions = LinkedHashMap<Any, Any>()
+
+    val size: Int
+        get() = myRevisions.size
+
+    operator fun get(branch: String): String? {
+        return myRevisions[toKey(branch)]?.let { toRevision(it) }
+    }
+
+    /**
+     * @return whether branch has given revision, null [revision] stands for unknown branch
+     */
+    fun has(branch: String, revision: String?): Boolean {
+        val value = myRevisions[toKey(branch)] ?: return revision == null
+        return revision != null && isSame(value, toValue(revision))
+    }
+
+    /**
+     * @return names of branches evicted to keep size limit, null if branch already had same revision
+     */
+    fun put(branch: String, revision: String): List<String>? {
+        val key = toKey(branch)
+        val value = toValue(revision)
+        val old = myRevisions.remove(key)
+        if (old != null && isSame(old, value)) {
+            myRevisions[key] = old
+            return null
+        }
+        myRevisions[key] = value
+        return evict()
+    }
+
+    fun remove(branch: String): Boolean {
+        return myRevisions.remove(toKey(branch)) != null
+    }
+
+    /**
+     * Removes 'head' and 'merge' refs of pull request
+     * @return names of removed branches
+     */
+    fun removePullRequest(number: Long): List<String> {
+        return listOf(HEAD, MERGE).mapNotNull { kind ->
+            val key = (number shl 1) or kind
+            if (myRevisions.remove(key) != null) toBranch(key) else null
+        }
+    }
+
+    private fun evict(): List<String> {
+        if (myRevisions.size <= maxSize) return emptyList()
+        val evicted = ArrayList<String>()
+        val iterator = myRevisions.keys.iterator()
+        while (myRevisions.size > maxSize && iterator.hasNext()) {
+            evicted.add(toBranch(iterator.next()))
+            iterator.remove()
+        }
+        return evicted
+    }
+
+    fun toMap(): Map<String, String> {
+        val result = LinkedHashMap<String, String>(myRevisions.size)
+        for ((key, value) in myRevisions) {
+            result[toBranch(key)] = toRevision(value)
+        }
+        return result
+    }
+
+    /**
+     * @return estimated memory used by entries in bytes, interned branch names are not counted
+     */
+    fun getMemoryUsage(): Long {
+        var result = 0L
+        for ((key, value) in myRevisions) {
+            result += ENTRY_SIZE
+            if (key is Long) result += LONG_SIZE
+            result += if (value is ByteArray) SHA1_SIZE else 40 + 2L * (value as String).length
+        }
+        return result
+    }
+}
@@ -0,0 +1,62 @@
+package org.jetbrains.teamcity.github
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import jetbrains.buildServer.serverSide.oauth.github.GitHubClientEx
+import jetbrains.buildServer.serverSide.oauth.github.GitHubClientFactory
+import org.apache.commons.codec.digest.DigestUtils
+import org.eclipse.egit.github.core.client.GitHubClient
+import java.util.concurrent.TimeUnit
+
+/**
+ * Shared GitHub API clients, one per server url and OAuth token.
+ *
+ * Client is configured with its token once and never modified after that, so it's safe to use it from several threads,
+ * unlike one client switched between tokens via 'setOAuth2Token'.
+ * Connections to same server are kept alive and reused by JVM HTTP client between requests, so checks of many
+ * repositories don't open new connection with TLS handshake for each repository.
+ * At most 'teamcity.githubWebhooks.clientPool.maxSize' clients are kept, unused ones are dropped after an hour
+ */
+class GitHubClientPool {
+    companion object {
+        const val MAX_SIZE_PROPERTY = "teamcity.githubWebhooks.clientPool.maxSize"
+
+        // Token hashes of pooled clients, so that clients could be told apart by credentials without extracting them, see GitHubResponseCache
+        private val ourCredentials: Cache<GitHubClient, String> = CacheBuilder.newBuilder().weakKeys().build()
+
+        /**
+         * @return hash of token of [client] created by pool, null if client was created elsewhere
+         */
+        fun getCredentialsKey(client: GitHubClient): String? = ourCredentials.getIfPresent(client)
+    }
+
+    // Tokens are not kept in keys as is
+    private data class Key(val serverUrl: String, val token: String)
+
+    private val myClients: Cache<Key, GitHubClientEx> = CacheBuilder.newBuilder()
+        .maximumSize(TeamCityProperties.getLong(MAX_SIZE_PROPERTY, 1000))
+        .expireAfterAccess(1, TimeUnit.HOURS)
+        .build()
+
+    /**
+     * @return client for [serverUrl] (GitHub url parameter of OAuth connection) authenticated with [token], should not be modified
+     */
+    fun getClient(serverUrl: String, token: String): GitHubClientEx {
+        val hash = DigestUtils.sha256Hex(token)
+        return myClients.get(Key(serverUrl, hash)) {
+            GitHubClientFactory.createGitHubClient(serverUrl).also {
+                it.setOAuth2Token(token)
+                ourCredentials.put(it, hash)
+            }
+        }
+    }
+
+    /**
+     * Drops clients of removed or incorrect [token]
+     */
+    fun invalidate(token: String) {
+        val hash = DigestUtils.sha256Hex(token)
+        myClients.asMap().keys.removeIf { it.token == hash }
+    }
+}
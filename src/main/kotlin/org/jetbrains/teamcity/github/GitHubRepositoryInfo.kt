@@ -44,6 +44,7 @@ data class GitHubRepositoryInfo(val server: String, val owner: String, val name:
      */
     val id: String
         get() {
+            myId?.let { return it }
             val builder = StringBuilder()
             builder.append(server)
             if (!builder.endsWith('/')) {
@@ -52,9 +53,23 @@ data class GitHubRepositoryInfo(val server: String, val owner: String, val name:
             builder.append(owner)
             builder.append('/')
             builder.append(name)
-            return builder.toString()
+            return builder.toString().also { myId = it }
         }
 
+    // Computed on demand, not serialized
+    @Transient
+    private var myId: String? = null
+
+    @Transient
+    private var myKey: RepoKey? = null
+
+    /**
+     * @return canonical case-insensitive key of repository
+     */
+    fun toRepoKey(): RepoKey {
+        return myKey ?: RepoKey.of(server, owner, name).also { myKey = it }
+    }
+
 
     fun getRepositoryUrl(): String {
         // We expect that all GHE servers has https mode enabled.
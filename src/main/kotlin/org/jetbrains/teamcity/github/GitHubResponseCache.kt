@@ -0,0 +1,90 @@
+package org.jetbrains.teamcity.github
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import org.eclipse.egit.github.core.client.ConditionalRequests
+import org.eclipse.egit.github.core.client.GitHubClient
+import org.eclipse.egit.github.core.client.GitHubRequest
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Shared cache of GitHub GET responses: validators ('ETag', 'Last-Modified') and raw bodies.
+ *
+ * Requests are made conditional, 'Not Modified' response reuses cached body and does not count against rate limit.
+ * Entries are kept per request url (which includes server) and client credentials (token hash of pooled client, see GitHubClientPool),
+ * at most 'teamcity.githubWebhooks.responseCache.maxSize' of them.
+ * Cached body is parsed on each hit, so callers get own instances which could be modified
+ */
+class GitHubResponseCache {
+    companion object {
+        private val LOG = Util.getLogger(GitHubResponseCache::class.java)
+
+        const val ENABLED_PROPERTY = "teamcity.githubWebhooks.responseCache.enabled"
+        const val MAX_SIZE_PROPERTY = "teamcity.githubWebhooks.responseCache.maxSize"
+    }
+
+    private data class Key(val url: String, val credentials: String)
+
+    private class Entry(val etag: String?, val lastModified: String?, val content: ByteArray)
+
+    data class Statistics(val size: Long,
+                          val hits: Long,
+                          val misses: Long)
+
+    private val myCache: Cache<Key, Entry> = CacheBuilder.newBuilder()
+        .maximumSize(TeamCityProperties.getLong(MAX_SIZE_PROPERTY, 10000))
+        .expireAfterAccess(1, TimeUnit.DAYS)
+        .build()
+
+    private val myHits = AtomicLong()
+    private val myMisses = AtomicLong()
+
+    /**
+     * Hits are requests answered with 'Not Modified' and served from cache, misses are requests which downloaded response body
+     */
+    fun getStatistics(): Statistics {
+        return Statistics(size = myCache.size(), hits = myHits.get(), misses = myMisses.get())
+    }
+
+    /**
+     * Performs [request] with [client], conditional if there's cached response for it
+     * @param credentials key of client credentials, e.g. token hash. Responses of clients without known credentials are not cached
+     * @return parsed response body
+     */
+    @Throws(IOException::class)
+    fun <T> get(client: GitHubClient, request: GitHubRequest, credentials: String? = GitHubClientPool.getCredentialsKey(client)): T {
+        @Suppress("UNCHECKED_CAST")
+        return getImpl(client, request, credentials) as T
+    }
+
+    private fun getImpl(client: GitHubClient, request: GitHubRequest, credentials: String?): Any? {
+        // Responses of anonymous or unknown clients are not cached: they could be shared with clients having other access
+        if (credentials == null || !TeamCityProperties.getBooleanOrTrue(ENABLED_PROPERTY)) {
+            return client.get(request).body
+        }
+        val key = Key(ConditionalRequests.getUrl(client, request), credentials)
+
+        val cached = myCache.getIfPresent(key)
+        val response = ConditionalRequests.get(client, request, cached?.etag, cached?.lastModified)
+        if (response.isNotModified && cached != null) {
+            myHits.incrementAndGet()
+            LOG.debug("Response for '${key.url}' was not modified, cached one is used")
+            return ConditionalRequests.parse(client, request, cached.content)
+        }
+        myMisses.incrementAndGet()
+        val content = response.content
+        if (content != null && (response.etag != null || response.lastModified != null)) {
+            myCache.put(key, Entry(response.etag, response.lastModified, content))
+        } else {
+            myCache.invalidate(key)
+        }
+        return response.body
+    }
+
+    override fun toString(): String {
+        return "GitHubResponseCache(${getStatistics()})"
+    }
+}
@@ -0,0 +1,78 @@
+package org.jetbrains.teamcity.github
+
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import org.jetbrains.teamcity.github.controllers.Status
+import java.util.*
+import java.util.concurrent.TimeUnit
+import kotlin.math.min
+
+/**
+ * Decides which hooks [WebhookPeriodicalChecker] should check in a run and in which order.
+ *
+ * Hooks with recently delivered payloads ('teamcity.githubWebhooks.checker.recentlyUsed.min') are checked rarely
+ * ('checker.recentlyUsedInterval.min'), other working hooks - every 'checker.healthyInterval.min'.
+ * Hooks with problems (e.g. waiting for first payload, failed deliveries) are checked on next run, each check which leaves hook
+ * in problem status doubles the delay up to 'checker.maxBackoff.min'.
+ * Never checked hooks and hooks with problems go first.
+ */
+internal class HookCheckScheduler(private val myClock: () -> Long = { System.currentTimeMillis() }) {
+    companion object {
+        private val HEALTHY = setOf(Status.OK, Status.DISABLED)
+
+        private fun minutes(name: String, default: Long): Long = TimeUnit.MINUTES.toMillis(TeamCityProperties.getLong(name, default))
+    }
+
+    private class State(val failures: Int, val nextAt: Long)
+
+    private class Candidate(val due: Long, val healthy: Boolean, val hook: Pair<GitHubRepositoryInfo, WebHookInfo>)
+
+    // Hook url -> last check
+    private val myStates = HashMap<String, State>()
+
+    /**
+     * @param runStarted start of current run, see [checked]
+     * @return hooks which should be checked in run started at [runStarted], most urgent first
+     */
+    @Synchronized
+    fun selectDue(hooks: Collection<Pair<GitHubRepositoryInfo, WebHookInfo>>, runStarted: Long): List<Pair<GitHubRepositoryInfo, WebHookInfo>> {
+        // State of missing hook is dropped only once it's due, so that hooks missing temporarily
+        // (e.g. while storage is reloaded) keep their schedule and backoff
+        val urls = hooks.mapTo(HashSet()) { it.second.url }
+        myStates.entries.removeIf { it.key !in urls && it.value.nextAt <= runStarted }
+
+        // Problems are more urgent than healthy hooks due at same time
+        val queue = PriorityQueue<Candidate>(compareBy<Candidate> { it.due }.thenBy { it.healthy })
+        for (pair in hooks) {
+            val healthy = pair.second.status in HEALTHY
+            val state = myStates[pair.second.url]
+            // Hook which was healthy when checked but has problems now should not wait for its healthy interval
+            val due = if (state == null || (!healthy && state.failures == 0)) Long.MIN_VALUE else state.nextAt
+            if (due <= runStarted) queue.add(Candidate(due, healthy, pair))
+        }
+        val result = ArrayList<Pair<GitHubRepositoryInfo, WebHookInfo>>(queue.size)
+        while (queue.isNotEmpty()) result.add(queue.poll().hook)
+        return result
+    }
+
+    /**
+     * Records that [hooks] were checked in run started at [runStarted] and schedules their next check according to current status
+     */
+    @Synchronized
+    fun checked(hooks: Collection<WebHookInfo>, runStarted: Long, checkInterval: Long) {
+        for (hook in hooks) {
+            val previous = myStates[hook.url]
+            val state = if (hook.status in HEALTHY) {
+                val lastUsed = hook.lastUsed?.time ?: 0L
+                val recentlyUsed = myClock() - lastUsed < minutes("teamcity.githubWebhooks.checker.recentlyUsed.min", 120)
+                val interval = if (recentlyUsed) minutes("teamcity.githubWebhooks.checker.recentlyUsedInterval.min", 1440)
+                               else minutes("teamcity.githubWebhooks.checker.healthyInterval.min", 120)
+                State(0, runStarted + interval)
+            } else {
+                val failures = min((previous?.failures ?: 0) + 1, 30)
+                val backoff = min(checkInterval shl (failures - 1), minutes("teamcity.githubWebhooks.checker.maxBackoff.min", 720))
+                State(failures, runStarted + backoff)
+            }
+            myStates[hook.url] = state
+        }
+    }
+}
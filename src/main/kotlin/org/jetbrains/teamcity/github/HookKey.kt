@@ -35,7 +35,13 @@ data class HookKey(val server: String, val owner: String, val name: String, val
         return "$server/$owner/$name/$id"
     }
 
+    @Transient
+    private var myMapKey: RepoKey? = null
+
+    /**
+     * @return canonical key of hook repository
+     */
     fun toMapKey(): RepoKey {
-        return RepoKey(server.trimEnd('/'), owner, name)
+        return myMapKey ?: RepoKey.of(server, owner, name).also { myMapKey = it }
     }
 }
\ No newline at end of file
@@ -0,0 +1,117 @@
+package org.jetbrains.teamcity.github
+
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import java.util.*
+import java.util.concurrent.TimeUnit
+import kotlin.math.max
+
+/**
+ * Paces GitHub API requests made by [WebhookPeriodicalChecker].
+ *
+ * Requests to each server are spread evenly over the run (see [startRun]) with random jitter instead of a burst.
+ * Request slots belong to the run, so concurrent runs (e.g. periodical and forced one) don't affect each other,
+ * while token budgets are shared by all runs.
+ * Requests made with each token are additionally spaced so that remaining rate limit of token lasts until the limit reset,
+ * keeping 'teamcity.githubWebhooks.checker.rateLimit.headroom.percent' of the limit for UI actions and pull request merge polling.
+ * GitHub client does not expose 'X-RateLimit-Reset', so the limit window is assumed to last one hour since the first request made in it.
+ */
+internal class RateLimitPacer(private val myClock: () -> Long = { System.currentTimeMillis() },
+                              private val myRandom: Random = Random()) {
+    companion object {
+        const val HEADROOM_PROPERTY = "teamcity.githubWebhooks.checker.rateLimit.headroom.percent"
+        const val SPREAD_PROPERTY = "teamcity.githubWebhooks.checker.spread.percent"
+        const val JITTER_PROPERTY = "teamcity.githubWebhooks.checker.jitter.percent"
+
+        private val WINDOW = TimeUnit.HOURS.toMillis(1)
+
+        private fun percent(name: String, default: Int): Int = TeamCityProperties.getInteger(name, default).coerceIn(0, 100)
+    }
+
+    private class TokenBudget {
+        // Unknown until first response
+        var remaining = -1
+        var limit = -1
+        var resetAt = 0L
+        var nextAt = 0L
+    }
+
+    internal class ServerSlots(val spacing: Long, var nextAt: Long)
+
+    /**
+     * Requests of single run, see [startRun]
+     */
+    inner class Run internal constructor(internal val deadline: Long, internal val servers: Map<String, ServerSlots>) {
+        /**
+         * Reserves slot for request to [server] made with [token]
+         * @return milliseconds to wait before making request, null if request should not be made in this run since token budget is exhausted
+         */
+        fun reserve(server: String, token: String): Long? = reserve(this, server, token)
+    }
+
+    private val myTokens = HashMap<Pair<String, String>, TokenBudget>()
+
+    /**
+     * Starts pacing of [requests] (number of requests per server) which should be made before [deadline],
+     * requests are spread over 'teamcity.githubWebhooks.checker.spread.percent' of remaining time.
+     * Without [deadline] requests are not spread, only token budgets are respected
+     */
+    @Synchronized
+    fun startRun(requests: Map<String, Int>, deadline: Long?): Run {
+        if (deadline == null) return Run(Long.MAX_VALUE, emptyMap())
+        val now = myClock()
+        val spread = max(0, deadline - now) * percent(SPREAD_PROPERTY, 80) / 100
+        return Run(deadline, requests.mapValues { (_, count) -> ServerSlots(spread / max(1, count), now) })
+    }
+
+    @Synchronized
+    private fun reserve(run: Run, server: String, token: String): Long? {
+        val now = myClock()
+        val budget = myTokens.getOrPut(server to token) { TokenBudget() }
+        if (budget.resetAt <= now) {
+            budget.resetAt = now + WINDOW
+            if (budget.limit > 0) budget.remaining = budget.limit
+        }
+
+        var at = max(now, budget.nextAt)
+        val slots = run.servers[server]
+        if (slots != null) at = max(at, slots.nextAt)
+
+        var available = Long.MAX_VALUE
+        if (budget.limit > 0) {
+            available = budget.remaining - budget.limit.toLong() * percent(HEADROOM_PROPERTY, 20) / 100
+            if (available <= 0) return null
+        }
+        if (at > run.deadline) return null
+
+        if (budget.limit > 0) {
+            budget.remaining--
+            budget.nextAt = at + max(0, budget.resetAt - at) / available
+        }
+        if (slots != null) {
+            val jitter = percent(JITTER_PROPERTY, 20)
+            slots.nextAt = at + slots.spacing * (100 + myRandom.nextInt(2 * jitter + 1) - jitter) / 100
+        }
+        return at - now
+    }
+
+    /**
+     * Updates budget of [token] with rate limit reported by [server] ('X-RateLimit-Remaining' and 'X-RateLimit-Limit' headers)
+     */
+    @Synchronized
+    fun update(server: String, token: String, remaining: Int, limit: Int) {
+        if (remaining < 0 || limit <= 0) return
+        val budget = myTokens.getOrPut(server to token) { TokenBudget() }
+        if (budget.resetAt <= myClock()) budget.resetAt = myClock() + WINDOW
+        budget.remaining = remaining
+        budget.limit = limit
+    }
+
+    /**
+     * Forgets tokens not used for more than rate limit window
+     */
+    @Synchronized
+    fun cleanup() {
+        val now = myClock()
+        myTokens.values.removeIf { it.resetAt + WINDOW < now }
+    }
+}
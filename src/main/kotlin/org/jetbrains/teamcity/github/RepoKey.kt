@@ -1,29 +1,46 @@
 package org.jetbrains.teamcity.github
 
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
 import org.eclipse.egit.github.core.RepositoryId
 import java.util.*
 
-data class RepoKey internal constructor(val server: String, val owner: String, val name: String) {
+/**
+ * Case-insensitive repository identity.
+ * Instances are canonical: obtained only via [of] (and [HookKey.toMapKey], [GitHubRepositoryInfo.toRepoKey]),
+ * one per repository while referenced, so keys are compared by identity.
+ * Keeps case of repository it was first obtained for, so should be compared as keys rather than via [toInfo]
+ */
+class RepoKey private constructor(val server: String, val owner: String, val name: String) {
+    companion object {
+        // Lowercase 'server/owner/name' to canonical key
+        private val ourKeys: Cache<String, RepoKey> = CacheBuilder.newBuilder().weakValues().build()
+
+        fun of(server: String, owner: String, name: String): RepoKey {
+            val trimmed = server.trimEnd('/')
+            return ourKeys.get("${trimmed.lowercase()}/${owner.lowercase()}/${name.lowercase()}") { RepoKey(trimmed, owner, name) }
+        }
+
+        fun of(server: String, repo: RepositoryId): RepoKey = of(server, repo.owner, repo.name)
+    }
 
     private val hashCode = Objects.hash(server.lowercase(), owner.lowercase(), name.lowercase())
 
-    constructor(server: String, repo: RepositoryId) : this(server.trimEnd('/'), repo.owner, repo.name)
+    // Stable between server restarts, used to distribute repositories between storage shards
+    internal val ownerHash = Objects.hash(server.lowercase(), owner.lowercase())
+
+    @Transient
+    private var myInfo: GitHubRepositoryInfo? = null
 
     override fun toString(): String {
         return "$server/$owner/$name"
     }
 
-    fun toInfo(): GitHubRepositoryInfo = GitHubRepositoryInfo(server, owner, name)
+    fun toInfo(): GitHubRepositoryInfo = myInfo ?: GitHubRepositoryInfo(server, owner, name).also { myInfo = it }
 
-    override fun equals(other: Any?): Boolean  {
-        return if (other is RepoKey) {
-            server.equals(other.server, true) && owner.equals(other.owner, true) && name.equals(other.name, true)
-        } else {
-            false
-        }
-    }
+    override fun equals(other: Any?): Boolean = this === other
 
     override fun hashCode(): Int {
         return hashCode
     }
-}
\ No newline at end of file
+}
@@ -8,7 +8,6 @@ import jetbrains.buildServer.serverSide.TeamCityProperties
 import jetbrains.buildServer.serverSide.connections.ProjectConnectionsManager
 import jetbrains.buildServer.serverSide.oauth.OAuthConnectionDescriptor
 import jetbrains.buildServer.serverSide.oauth.github.GitHubClientEx
-import jetbrains.buildServer.serverSide.oauth.github.GitHubClientFactory
 import jetbrains.buildServer.serverSide.oauth.github.GitHubConstants
 import jetbrains.buildServer.serverSide.setupFromUrl.SetupFromUrlExtension
 import jetbrains.buildServer.users.SUser
@@ -19,7 +18,8 @@ class SetupFromUrlGitHubWebhooksExtension(
         private val myProjectManager: ProjectManager,
         private val myWebHooksManager: WebHooksManager,
         private val myOAuthConnectionsManager: ProjectConnectionsManager,
-        private val myTokensHelper: TokensHelper
+        private val myTokensHelper: TokensHelper,
+        private val myClientPool: GitHubClientPool
 ) : SetupFromUrlExtension {
     companion object {
         private val LOG = Util.getLogger(SetupFromUrlGitHubWebhooksExtension::class.java)
@@ -60,9 +60,9 @@ class SetupFromUrlGitHubWebhooksExtension(
                 LOG.warn("Could not install GitHub webhook for '$info' repository: no tokens for user '${user.describe(false)}")
             }
             for ((connection, tokens) in connectionToTokensMap) {
-                val ghc: GitHubClientEx = GitHubClientFactory.createGitHubClient(connection.parameters[GitHubConstants.GITHUB_URL_PARAM]!!)
+                val serverUrl = connection.parameters[GitHubConstants.GITHUB_URL_PARAM]!!
                 for (token in tokens) {
-                    ghc.setOAuth2Token(token.accessToken)
+                    val ghc: GitHubClientEx = myClientPool.getClient(serverUrl, token.accessToken)
                     LOG.debug("Trying to install GitHub webhook with token from the GitHub user '${token.oauthLogin}', OAuth connection is ${connection.id}")
                     try {
                         val result = myWebHooksManager.doInstallWebHook(info, ghc, user, connection)
@@ -1,13 +1,17 @@
 package org.jetbrains.teamcity.github
 
+import jetbrains.buildServer.serverSide.TeamCityProperties
 import org.eclipse.egit.github.core.RepositoryHook
 import org.jetbrains.teamcity.github.WebHooksStorage.Companion.gson
+import org.jetbrains.teamcity.github.controllers.GitHubWebHookListener
 import org.jetbrains.teamcity.github.controllers.Status
 import java.util.*
 
 /**
- * It's highly recommended not to modify any 'var' field outside of WebHooksStorage#update methods
- * since modifications may be not stored on disk
+ * Modifications of [status], [lastUsed] and branch revisions (via [updateBranchMapping], [updateBranchRevision], [compareAndSetBranchRevision]
+ * and [removePullRequestBranches]) are journaled by WebHooksStorage.
+ * Branch revisions are kept in compact form (see BranchRevisions), at most 'teamcity.githubWebhooks.branchRevisions.maxPerHook'
+ * least recently updated ones are kept, [lastBranchRevisions] returns a copy
  */
 class WebHookInfo(val url: String, // API URL
                   val callbackUrl: String, // TC URL (GitHubWebHookListener)
@@ -15,11 +19,65 @@ class WebHookInfo(val url: String, // API URL
                   val key: HookKey = HookKey.fromHookUrl(url),
                   val id: Long = key.id,
 
-                  var status: Status,
-                  var lastUsed: Date? = null,
-                  var lastBranchRevisions: MutableMap<String, String>? = null
+                  status: Status,
+                  lastUsed: Date? = null,
+                  lastBranchRevisions: Map<String, String>? = null
 ) {
+    /**
+     * Notified about modifications of runtime fields, see WebHooksStorage
+     */
+    interface ChangeListener {
+        fun statusChanged(hook: WebHookInfo)
+        fun lastUsedChanged(hook: WebHookInfo)
+        fun branchesChanged(hook: WebHookInfo, branches: Collection<String>)
+    }
+
+    @Volatile
+    internal var changeListener: ChangeListener? = null
+
+    /**
+     * Version stamp of runtime fields (time of last modification), used to merge data modified by other nodes
+     */
+    @Volatile
+    internal var version: Long = 0
+
+    /**
+     * Public key of AuthData used to verify payloads, extracted from [callbackUrl] once
+     */
+    val pubKey: String? = GitHubWebHookListener.getPubKeyFromRequestPath(callbackUrl)
+
+    @Volatile
+    private var myStatus: Status = status
+
+    @Volatile
+    private var myLastUsed: Date? = lastUsed
+
+    var status: Status
+        get() = myStatus
+        set(value) {
+            if (myStatus == value) return
+            myStatus = value
+            changeListener?.statusChanged(this)
+        }
+
+    var lastUsed: Date?
+        get() = myLastUsed
+        set(value) {
+            if (myLastUsed == value) return
+            myLastUsed = value
+            changeListener?.lastUsedChanged(this)
+        }
+
+    private var myBranches: BranchRevisions? = lastBranchRevisions?.let { revisions ->
+        BranchRevisions(getMaxBranches()).also { branches -> revisions.forEach { branches.put(it.key, it.value) } }
+    }
+
+    val lastBranchRevisions: Map<String, String>?
+        @Synchronized get() = myBranches?.toMap()
+
     companion object {
+        private fun getMaxBranches() = TeamCityProperties.getInteger("teamcity.githubWebhooks.branchRevisions.maxPerHook", 1000)
+
         private fun oneFromJson(string: String): WebHookInfo? = gson.fromJson(string, WebHookInfo::class.java)
         private fun listFromJson(string: String): List<WebHookInfo> = gson.fromJson(string, WebHooksStorage.hooksListType) ?: emptyList()
 
@@ -71,10 +129,119 @@ class WebHookInfo(val url: String, // API URL
         return result
     }
 
-    fun updateBranchMapping(update: Map<String, String>): Map<String, String> {
-        if (lastBranchRevisions == null) lastBranchRevisions = HashMap()
-        lastBranchRevisions!!.putAll(update)
-        return lastBranchRevisions!!
+    private fun getOrCreateBranches(): BranchRevisions {
+        return myBranches ?: BranchRevisions(getMaxBranches()).also { myBranches = it }
+    }
+
+    @Synchronized
+    fun updateBranchMapping(update: Map<String, String>) {
+        val branches = getOrCreateBranches()
+        val changed = LinkedHashSet<String>()
+        for ((branch, revision) in update) {
+            val evicted = branches.put(branch, revision) ?: continue
+            changed.add(branch)
+            changed.addAll(evicted)
+        }
+        if (changed.isNotEmpty()) changeListener?.branchesChanged(this, changed)
+    }
+
+    /**
+     * Atomically stores revision of the branch
+     * @return false if branch already had same revision
+     */
+    @Synchronized
+    fun updateBranchRevision(branch: String, revision: String): Boolean {
+        val evicted = getOrCreateBranches().put(branch, revision) ?: return false
+        changeListener?.branchesChanged(this, listOf(branch) + evicted)
+        return true
+    }
+
+    /**
+     * Atomically replaces revision of the branch if it's [expected], null [expected] stands for unknown branch
+     * and null [revision] forgets the branch
+     * @return false if branch has other revision
+     */
+    @Synchronized
+    fun compareAndSetBranchRevision(branch: String, expected: String?, revision: String?): Boolean {
+        if (!(myBranches?.has(branch, expected) ?: (expected == null))) return false
+        if (expected == revision) return true
+        if (revision == null) {
+            if (myBranches?.remove(branch) == true) changeListener?.branchesChanged(this, listOf(branch))
+            return true
+        }
+        val evicted = getOrCreateBranches().put(branch, revision) ?: return true
+        changeListener?.branchesChanged(this, listOf(branch) + evicted)
+        return true
+    }
+
+    @Synchronized
+    fun getBranchRevision(branch: String): String? {
+        return myBranches?.get(branch)
+    }
+
+    /**
+     * Forgets revisions of 'head' and 'merge' branches of closed pull request
+     */
+    @Synchronized
+    fun removePullRequestBranches(number: Long) {
+        val removed = myBranches?.removePullRequest(number) ?: return
+        if (removed.isNotEmpty()) changeListener?.branchesChanged(this, removed)
+    }
+
+    /**
+     * Removes branches without notifying listener, used on journal replay
+     */
+    @Synchronized
+    internal fun removeBranches(branches: Collection<String>) {
+        val revisions = myBranches ?: return
+        branches.forEach { revisions.remove(it) }
+    }
+
+    /**
+     * @return estimated memory used by branch revisions in bytes
+     */
+    @Synchronized
+    fun getBranchRevisionsMemoryUsage(): Long {
+        return myBranches?.getMemoryUsage() ?: 0
+    }
+
+    @Synchronized
+    fun getBranchRevisionsCount(): Int {
+        return myBranches?.size ?: 0
+    }
+
+    /**
+     * Applies runtime fields of same hook loaded from disk if they are newer than local ones, listener is not notified
+     * @return true if fields were updated
+     */
+    @Synchronized
+    internal fun mergeStored(stored: WebHookInfo): Boolean {
+        if (stored.version <= version) return false
+        myStatus = stored.status
+        myLastUsed = stored.lastUsed
+        stored.lastBranchRevisions?.let { revisions ->
+            val branches = getOrCreateBranches()
+            revisions.forEach { branches.put(it.key, it.value) }
+        }
+        version = stored.version
+        return true
+    }
+
+    /**
+     * @return detached copy with same runtime fields and version stamp, used to apply records of other nodes
+     */
+    @Synchronized
+    internal fun copy(): WebHookInfo {
+        return WebHookInfo(url, callbackUrl, key, id, myStatus, myLastUsed, myBranches?.toMap()).also { it.version = version }
+    }
+
+    /**
+     * @return current revisions of given branches, absent branches are skipped
+     */
+    @Synchronized
+    fun getBranchRevisions(branches: Collection<String>): Map<String, String> {
+        val revisions = myBranches ?: return emptyMap()
+        return branches.mapNotNull { branch -> revisions[branch]?.let { branch to it } }.toMap()
     }
 
     override fun toString(): String {
@@ -0,0 +1,338 @@
+package org.jetbrains.teamcity.github
+
+import com.google.gson.Gson
+import com.google.gson.GsonBuilder
+import com.google.gson.JsonNull
+import com.google.gson.JsonObject
+import com.google.gson.JsonParseException
+import com.google.gson.JsonPrimitive
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.util.FileUtil
+import org.jetbrains.teamcity.github.controllers.Status
+import org.jetbrains.teamcity.github.json.HookInfoTypeAdapter
+import org.jetbrains.teamcity.github.json.SimpleDateTypeAdapter
+import java.io.File
+import java.io.FileOutputStream
+import java.io.RandomAccessFile
+import java.util.*
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Append-only journal of [WebHooksStorage] modifications: one JSON object per line.
+ *
+ * Each node writes its own journal segments ('<journal file>.<node id>.<generation>'),
+ * so nodes sharing data directory never append to or delete records of each other.
+ * Records are buffered in memory and appended to current segment by [flush].
+ * On compaction journal is [rotate]d: new records go to segment of next generation, while previous ones are kept
+ * until snapshot containing all their changes is written (see [compacted]), only own segments are deleted then.
+ * Each record contains absolute value, not a difference, so replaying records which are already
+ * included into snapshot is harmless and crash at any point of compaction loses nothing.
+ * Records also contain hook version stamp, records older than hook loaded from snapshot
+ * (e.g. written by another node) are not applied, neither are additions of hooks deleted later by any node.
+ * Offsets up to which segments are read are stored in snapshot (see [getOffsets]), so that only newer records are applied
+ * on top of it, records appended by other nodes since are read by [readNew].
+ */
+internal class WebHooksJournal(private val myBase: File, nodeId: String) {
+    companion object {
+        private val LOG: Logger = Util.getLogger(WebHooksJournal::class.java)
+
+        private val gson: Gson = GsonBuilder()
+                .registerTypeAdapter(Date::class.java, SimpleDateTypeAdapter)
+                .registerTypeAdapter(WebHookInfo::class.java, HookInfoTypeAdapter)
+                .create()
+    }
+
+    private val myNodeId = nodeId.replace(Regex("[^A-Za-z0-9_-]"), "_")
+    // Generation of own segment new records are appended to: new one on each start, so that records are never appended
+    // after partially written one and segment names are not reused (offsets of segments are stored in snapshot)
+    private var myGeneration = Math.max(System.currentTimeMillis(), (getSegments().filter { it.node == myNodeId }.maxOfOrNull { it.generation } ?: 0) + 1)
+    // Offsets of end of last complete record read from each segment
+    private val myReplayed = HashMap<String, Long>()
+    private val myPending = ConcurrentLinkedQueue<JsonObject>()
+    private val myWritten = AtomicInteger()
+
+    private class Segment(val file: File, val node: String, val generation: Long)
+
+    /**
+     * Number of records since last rotation
+     */
+    val size: Int
+        get() = myWritten.get() + myPending.size
+
+    fun added(hook: WebHookInfo) {
+        val record = JsonObject()
+        record.addProperty("op", "add")
+        record.add("hook", gson.toJsonTree(hook, WebHookInfo::class.java))
+        record.addProperty("version", hook.version)
+        myPending.add(record)
+    }
+
+    fun deleted(hook: WebHookInfo) {
+        myPending.add(record("delete", hook))
+    }
+
+    fun statusChanged(hook: WebHookInfo) {
+        val record = record("status", hook)
+        record.addProperty("status", hook.status.name)
+        myPending.add(record)
+    }
+
+    fun lastUsedChanged(hook: WebHookInfo) {
+        val record = record("lastUsed", hook)
+        hook.lastUsed?.let { record.addProperty("lastUsed", it.time) }
+        myPending.add(record)
+    }
+
+    fun branchesChanged(hook: WebHookInfo, branches: Collection<String>) {
+        val record = record("branches", hook)
+        val revisions = hook.getBranchRevisions(branches)
+        val obj = JsonObject()
+        // Removed (e.g. of closed pull request or evicted) branches are written as nulls
+        branches.forEach { obj.add(it, revisions[it]?.let { revision -> JsonPrimitive(revision) } ?: JsonNull.INSTANCE) }
+        record.add("branches", obj)
+        myPending.add(record)
+    }
+
+    private fun record(op: String, hook: WebHookInfo): JsonObject {
+        val record = JsonObject()
+        record.addProperty("op", op)
+        record.addProperty("url", hook.url)
+        record.addProperty("callbackUrl", hook.callbackUrl)
+        record.addProperty("version", hook.version)
+        return record
+    }
+
+    private fun getSegmentFile(generation: Long) = File(myBase.path + ".$myNodeId.$generation")
+
+    /**
+     * @return segments of all nodes, oldest generations of each node first
+     */
+    private fun getSegments(): List<Segment> {
+        val prefix = myBase.name + "."
+        val files = myBase.parentFile?.listFiles { file -> file.isFile && file.name.startsWith(prefix) } ?: return emptyList()
+        return files.mapNotNull { file ->
+            val suffix = file.name.substring(prefix.length)
+            val generation = suffix.substringAfterLast('.', "").toLongOrNull() ?: return@mapNotNull null
+            Segment(file, suffix.substringBeforeLast('.'), generation)
+        }.sortedWith(compareBy<Segment> { it.node }.thenBy { it.generation })
+    }
+
+    /**
+     * Appends buffered records to the current segment of this node, segment is synced to disk afterwards
+     */
+    @Synchronized
+    fun flush() {
+        if (myPending.isEmpty()) return
+        val file = getSegmentFile(myGeneration)
+        try {
+            FileUtil.createParentDirs(file)
+            FileOutputStream(file, true).use { out ->
+                val writer = out.writer(Charsets.UTF_8).buffered()
+                while (true) {
+                    val record = myPending.poll() ?: break
+                    writer.write(gson.toJson(record))
+                    writer.newLine()
+                    myWritten.incrementAndGet()
+                }
+                writer.flush()
+                // Records should be on disk before segments of previous generation are dropped by compaction
+                out.channel.force(false)
+            }
+        } catch (e: Exception) {
+            LOG.warnAndDebugDetails("Cannot append webhooks changes to journal '${file.absolutePath}'", e)
+        }
+    }
+
+    /**
+     * Starts new segment so that all records written so far would be kept until [compacted] is called
+     */
+    @Synchronized
+    fun rotate() {
+        flush()
+        if (getSegmentFile(myGeneration).isFile) myGeneration = Math.max(System.currentTimeMillis(), myGeneration + 1)
+        myWritten.set(0)
+    }
+
+    /**
+     * Should be called once snapshot with all changes from segments written before [rotate] is written.
+     * Only segments of this node are deleted: records of other nodes may be not applied by this node yet
+     */
+    @Synchronized
+    fun compacted() {
+        for (segment in getSegments()) {
+            if (segment.node == myNodeId && segment.generation < myGeneration) FileUtil.delete(segment.file)
+        }
+    }
+
+    /**
+     * @return true if there're records written to disk by any node
+     */
+    @Synchronized
+    fun exists(): Boolean {
+        return getSegments().isNotEmpty()
+    }
+
+    /**
+     * Drops all records of all nodes, used once they're moved to another storage
+     */
+    @Synchronized
+    fun delete() {
+        myPending.clear()
+        getSegments().forEach { FileUtil.delete(it.file) }
+        myReplayed.clear()
+        myWritten.set(0)
+    }
+
+    /**
+     * Applies changes journaled by all nodes to [data]. Malformed records (e.g. partially written on crash) are skipped.
+     * @param included offsets of segments records before which are already included into [data], see [getOffsets]
+     * @return number of applied records
+     */
+    @Synchronized
+    fun replay(data: MutableMap<RepoKey, MutableList<WebHookInfo>>, included: Map<String, Long> = emptyMap()): Int {
+        flush()
+        myReplayed.clear()
+        return apply(read(getSegments(), included), data)
+    }
+
+    /**
+     * Reads records appended by other nodes since last [replay] or [readNew], own records are applied already
+     */
+    @Synchronized
+    fun readNew(): List<JsonObject> {
+        return read(getSegments().filter { it.node != myNodeId }, myReplayed)
+    }
+
+    /**
+     * @return offsets of existing segments up to which records were read by [replay] and [readNew],
+     * stored along with snapshot so that records included into it are not applied on top of it again
+     */
+    @Synchronized
+    fun getOffsets(): Map<String, Long> {
+        return getSegments().mapNotNull { segment -> myReplayed[segment.file.name]?.let { segment.file.name to it } }.toMap()
+    }
+
+    /**
+     * Reads complete records of [segments] starting from given offsets, trailing partially written record is left for the next read
+     */
+    private fun read(segments: List<Segment>, from: Map<String, Long>): List<JsonObject> {
+        val result = ArrayList<JsonObject>()
+        for (segment in segments) {
+            val file = segment.file
+            try {
+                // Segment was recreated since offset was stored
+                val offset = (from[file.name] ?: 0).takeIf { it <= file.length() } ?: 0
+                val bytes = RandomAccessFile(file, "r").use { raf ->
+                    raf.seek(offset)
+                    ByteArray((raf.length() - offset).toInt()).also { raf.readFully(it) }
+                }
+                val complete = bytes.lastIndexOf('\n'.code.toByte()) + 1
+                myReplayed[file.name] = offset + complete
+                for (line in String(bytes, 0, complete, Charsets.UTF_8).lineSequence()) {
+                    if (line.isBlank()) continue
+                    try {
+                        result.add(gson.fromJson(line, JsonObject::class.java))
+                    } catch (e: JsonParseException) {
+                        LOG.warn("Skipping malformed record in webhooks journal '${file.absolutePath}': ${e.message}")
+                    }
+                }
+            } catch (e: Exception) {
+                LOG.warnAndDebugDetails("Cannot read webhooks journal '${file.absolutePath}'", e)
+            }
+        }
+        return result
+    }
+
+    /**
+     * @return repositories of hooks modified by [records]
+     */
+    fun getRepoKeys(records: List<JsonObject>): Set<RepoKey> {
+        return records.mapNotNullTo(HashSet()) { record ->
+            try {
+                val url = if (record.getAsJsonPrimitive("op").asString == "add") {
+                    gson.fromJson(record.get("hook"), WebHookInfo::class.java).url
+                } else {
+                    record.getAsJsonPrimitive("url").asString
+                }
+                HookKey.fromHookUrl(url).toMapKey()
+            } catch (e: RuntimeException) {
+                null
+            }
+        }
+    }
+
+    /**
+     * Applies [records] to [data]. Records of different nodes are not ordered between each other,
+     * so hook additions older than its removal by any node are skipped
+     * @return number of applied records
+     */
+    fun apply(records: List<JsonObject>, data: MutableMap<RepoKey, MutableList<WebHookInfo>>): Int {
+        val index = HashMap<Pair<String, String>, WebHookInfo>()
+        for (hooks in data.values) {
+            hooks.forEach { index[it.url to it.callbackUrl] = it }
+        }
+        val deleted = HashMap<Pair<String, String>, Long>()
+        var applied = 0
+        for (record in records) {
+            try {
+                if (apply(record, data, index, deleted)) applied++
+            } catch (e: RuntimeException) {
+                LOG.warn("Skipping malformed record in webhooks journal: $e")
+            }
+        }
+        return applied
+    }
+
+    private fun apply(record: JsonObject,
+                      data: MutableMap<RepoKey, MutableList<WebHookInfo>>,
+                      index: MutableMap<Pair<String, String>, WebHookInfo>,
+                      deleted: MutableMap<Pair<String, String>, Long>): Boolean {
+        val op = record.getAsJsonPrimitive("op").asString
+        val version = record.getAsJsonPrimitive("version")?.asLong
+        if (op == "add") {
+            val hook = gson.fromJson(record.get("hook"), WebHookInfo::class.java)
+            if (index.containsKey(hook.url to hook.callbackUrl)) return false
+            val deletedVersion = deleted[hook.url to hook.callbackUrl]
+            if (deletedVersion != null && deletedVersion >= (version ?: 0)) return false
+            hook.version = version ?: 0
+            index[hook.url to hook.callbackUrl] = hook
+            data.getOrPut(hook.key.toMapKey()) { ArrayList() }.add(hook)
+            return true
+        }
+        val id = record.getAsJsonPrimitive("url").asString to record.getAsJsonPrimitive("callbackUrl").asString
+        val existing = index[id]
+        // Hook was modified after record was written, removal is applied anyway
+        if (existing != null && version != null && version < existing.version && op != "delete") return false
+        when (op) {
+            "delete" -> {
+                deleted[id] = Math.max(deleted[id] ?: 0, version ?: 0)
+                val hook = index.remove(id) ?: return false
+                val key = hook.key.toMapKey()
+                val hooks = data[key] ?: return false
+                hooks.remove(hook)
+                if (hooks.isEmpty()) data.remove(key)
+            }
+            "status" -> {
+                val hook = index[id] ?: return false
+                hook.status = Status.valueOf(record.getAsJsonPrimitive("status").asString)
+            }
+            "lastUsed" -> {
+                val hook = index[id] ?: return false
+                hook.lastUsed = record.getAsJsonPrimitive("lastUsed")?.let { Date(it.asLong) }
+            }
+            "branches" -> {
+                val hook = index[id] ?: return false
+                val (updated, removed) = record.getAsJsonObject("branches").entrySet().partition { !it.value.isJsonNull }
+                hook.updateBranchMapping(updated.associate { it.key to it.value.asString })
+                hook.removeBranches(removed.map { it.key })
+            }
+            else -> {
+                LOG.warn("Unknown webhooks journal record type '$op'")
+                return false
+            }
+        }
+        if (existing != null && version != null) existing.version = version
+        return true
+    }
+}
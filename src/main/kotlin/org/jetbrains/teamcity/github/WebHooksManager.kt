@@ -18,11 +18,13 @@ import org.jetbrains.teamcity.github.controllers.Status
 import org.jetbrains.teamcity.github.controllers.good
 import java.io.IOException
 import java.util.*
+import java.util.concurrent.CompletableFuture
 
 class WebHooksManager(links: WebLinks,
                       private val repoStateEventDispatcher: EventDispatcher<RepositoryStateListener>,
                       authDataStorage: AuthDataStorage,
-                      storage: WebHooksStorage) : ActionContext(storage, authDataStorage, links) {
+                      storage: WebHooksStorage,
+                      responseCache: GitHubResponseCache) : ActionContext(storage, authDataStorage, links, responseCache) {
 
     private val myRepoStateListener: RepositoryStateListenerAdapter = object : RepositoryStateListenerAdapter() {
         override fun repositoryStateChanged(root: VcsRoot, oldState: RepositoryState, newState: RepositoryState) {
@@ -82,6 +84,19 @@ class WebHooksManager(links: WebLinks,
         hookInfo.updateBranchMapping(map)
     }
 
+    /**
+     * @return false if branch has revision other than [expected], see [WebHookInfo.compareAndSetBranchRevision]
+     */
+    fun compareAndSetBranchRevision(hookInfo: WebHookInfo, branch: String, expected: String?, revision: String?): Boolean {
+        hookInfo.status = Status.OK
+        return hookInfo.compareAndSetBranchRevision(branch, expected, revision)
+    }
+
+    fun removePullRequestBranches(hookInfo: WebHookInfo, number: Long) {
+        hookInfo.status = Status.OK
+        hookInfo.removePullRequestBranches(number)
+    }
+
     private fun isBranchesInfoUpToDate(hook: WebHookInfo, newBranches: Map<String, String>): Boolean {
         val hookBranches = hook.lastBranchRevisions
 
@@ -104,8 +119,25 @@ class WebHooksManager(links: WebLinks,
         return true
     }
 
+    /**
+     * @see WebHooksStorage.awaitHook
+     */
+    fun awaitHookForPubKey(authData: AuthDataStorage.AuthData, timeoutMs: Long): CompletableFuture<WebHookInfo?> {
+        val repository = authData.repository ?: return CompletableFuture.completedFuture(null)
+        return storage.awaitHook(repository, authData.public, timeoutMs)
+    }
+
     fun getHookForPubKey(authData: AuthDataStorage.AuthData): WebHookInfo? {
-        return authData.repository?.let { storage.getHooks(it).firstOrNull { hook -> hook.callbackUrl.endsWith(authData.public) } }
+        val repository = authData.repository ?: return null
+        return storage.findByPubKey(authData.public)?.takeIf { it.key.toMapKey() == repository.toRepoKey() }
+    }
+
+    /**
+     * @param hookId value of 'X-GitHub-Hook-ID' header
+     */
+    fun getHookForHookId(authData: AuthDataStorage.AuthData, hookId: Long): WebHookInfo? {
+        val repository = authData.repository ?: return null
+        return storage.findById(repository.server, hookId)?.takeIf { it.pubKey == authData.public }
     }
 
 }
\ No newline at end of file
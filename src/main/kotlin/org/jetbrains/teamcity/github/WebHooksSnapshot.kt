@@ -0,0 +1,141 @@
+package org.jetbrains.teamcity.github
+
+import org.apache.commons.codec.binary.Hex
+import org.jetbrains.teamcity.github.controllers.Status
+import org.jetbrains.teamcity.github.util.SnapshotInput
+import org.jetbrains.teamcity.github.util.SnapshotOutput
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.*
+
+/**
+ * Compact binary snapshot of [WebHooksStorage] data (version 2, replaces pretty-printed JSON version 1).
+ * Each hook is stored with version stamp of its runtime state, see [WebHookInfo.version].
+ * Offsets of journal segments records before which are included into snapshot are stored before hooks, see [WebHooksJournal.getOffsets].
+ *
+ * Hook key is stored as is, so there's no need to parse hook url on load: url is restored from API url prefix
+ * (e.g. 'https://api.github.com'), owner, name and id. Server, owner, name, API url and callback url prefixes
+ * and statuses are stored in string table, sha1 revisions are stored as 20 bytes.
+ */
+internal object WebHooksSnapshot {
+    const val VERSION = 2
+    private const val MAGIC = 0x54434748 // 'TCGH'
+
+    private const val FULL_URL = 1
+    private const val HAS_LAST_USED = 2
+    private const val HAS_BRANCHES = 4
+
+    private const val REVISION_SHA1 = 0
+    private const val REVISION_STRING = 1
+
+    fun write(hooks: Collection<WebHookInfo>, output: OutputStream, journalOffsets: Map<String, Long> = emptyMap()) {
+        SnapshotOutput(output).use { out ->
+            out.writeHeader(MAGIC, VERSION)
+            out.writeInt(journalOffsets.size)
+            for ((segment, offset) in journalOffsets) {
+                out.writeString(segment)
+                out.writeLong(offset)
+            }
+            out.writeInt(hooks.size)
+            for (hook in hooks) {
+                writeHook(out, hook)
+            }
+        }
+    }
+
+    /**
+     * @param journalOffsets receives offsets of journal segments included into snapshot
+     * @return null if stream contains data of unsupported version
+     */
+    fun read(input: InputStream, journalOffsets: MutableMap<String, Long>? = null): List<WebHookInfo>? {
+        SnapshotInput(input).use { inp ->
+            val version = inp.readHeader(MAGIC)
+            if (version != VERSION) return null
+            for (i in 0 until inp.readInt()) {
+                val segment = inp.readString()
+                val offset = inp.readLong()
+                journalOffsets?.put(segment, offset)
+            }
+            val count = inp.readInt()
+            val result = ArrayList<WebHookInfo>(count)
+            for (i in 0 until count) {
+                result.add(readHook(inp))
+            }
+            return result
+        }
+    }
+
+    private fun writeHook(out: SnapshotOutput, hook: WebHookInfo) {
+        val key = hook.key
+        val apiUrl = hook.url.substringBefore("/repos/")
+        val fullUrl = getUrl(apiUrl, key) != hook.url
+        val lastUsed = hook.lastUsed
+        val branches = hook.lastBranchRevisions
+
+        var flags = 0
+        if (fullUrl) flags = flags or FULL_URL
+        if (lastUsed != null) flags = flags or HAS_LAST_USED
+        if (branches != null) flags = flags or HAS_BRANCHES
+        out.writeByte(flags)
+
+        out.writeShared(key.server)
+        out.writeShared(key.owner)
+        out.writeShared(key.name)
+        out.writeLong(key.id)
+        if (fullUrl) out.writeString(hook.url) else out.writeShared(apiUrl)
+
+        // Callback url is '<TeamCity url>/app/hooks/github/<public key>'
+        val callbackPrefix = hook.callbackUrl.substringBeforeLast('/', "")
+        out.writeShared(callbackPrefix)
+        out.writeString(hook.callbackUrl.substring(callbackPrefix.length))
+
+        out.writeShared(hook.status.name)
+        out.writeLong(hook.version)
+        if (lastUsed != null) out.writeLong(lastUsed.time)
+        if (branches != null) {
+            out.writeInt(branches.size)
+            for ((branch, revision) in branches) {
+                out.writeString(branch)
+                writeRevision(out, revision)
+            }
+        }
+    }
+
+    private fun readHook(inp: SnapshotInput): WebHookInfo {
+        val flags = inp.readByte()
+        val key = HookKey(inp.readShared()!!, inp.readShared()!!, inp.readShared()!!, inp.readLong())
+        val url = if (flags and FULL_URL != 0) inp.readString() else getUrl(inp.readShared()!!, key)
+        val callbackUrl = inp.readShared()!! + inp.readString()
+        val status = Status.valueOf(inp.readShared()!!)
+        val stamp = inp.readLong()
+        val lastUsed = if (flags and HAS_LAST_USED != 0) Date(inp.readLong()) else null
+        var branches: HashMap<String, String>? = null
+        if (flags and HAS_BRANCHES != 0) {
+            val count = inp.readInt()
+            branches = HashMap(count)
+            for (i in 0 until count) {
+                branches[inp.readString()] = readRevision(inp)
+            }
+        }
+        return WebHookInfo(url, callbackUrl, key, key.id, status, lastUsed, branches).also { it.version = stamp }
+    }
+
+    private fun getUrl(apiUrl: String, key: HookKey) = "$apiUrl/repos/${key.owner}/${key.name}/hooks/${key.id}"
+
+    private fun writeRevision(out: SnapshotOutput, revision: String) {
+        if (revision.length == 40 && revision.all { it in '0'..'9' || it in 'a'..'f' }) {
+            out.writeByte(REVISION_SHA1)
+            out.writeBytes(Hex.decodeHex(revision.toCharArray()))
+        } else {
+            out.writeByte(REVISION_STRING)
+            out.writeString(revision)
+        }
+    }
+
+    private fun readRevision(inp: SnapshotInput): String {
+        return when (inp.readByte()) {
+            REVISION_SHA1 -> String(Hex.encodeHex(inp.readBytes(20)))
+            else -> inp.readString()
+        }
+    }
+}
@@ -9,44 +9,75 @@ import com.google.gson.reflect.TypeToken
 import com.intellij.openapi.diagnostic.Logger
 import jetbrains.buildServer.serverSide.BuildServerAdapter
 import jetbrains.buildServer.serverSide.BuildServerListener
+import jetbrains.buildServer.serverSide.CurrentNodeInfo
 import jetbrains.buildServer.serverSide.ServerPaths
 import jetbrains.buildServer.serverSide.TeamCityProperties
 import jetbrains.buildServer.serverSide.executors.ExecutorServices
+import jetbrains.buildServer.serverSide.impl.FileWatcher
 import jetbrains.buildServer.serverSide.impl.FileWatcherFactory
 import jetbrains.buildServer.util.EventDispatcher
-import jetbrains.buildServer.util.FileUtil
 import jetbrains.buildServer.util.cache.CacheProvider
 import org.eclipse.egit.github.core.RepositoryHook
 import org.eclipse.egit.github.core.RepositoryId
 import org.jetbrains.teamcity.github.controllers.bad
 import org.jetbrains.teamcity.github.json.HookInfoTypeAdapter
 import org.jetbrains.teamcity.github.json.SimpleDateTypeAdapter
+import org.jetbrains.teamcity.github.util.StorageWarmUp
+import org.jetbrains.teamcity.github.util.backupLegacyFile
+import org.jetbrains.teamcity.github.util.withFileLock
+import org.jetbrains.teamcity.github.util.writeAtomically
 import java.io.File
 import java.lang.reflect.Type
 import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
-import java.util.concurrent.locks.ReentrantReadWriteLock
-import kotlin.concurrent.read
-import kotlin.concurrent.write
 
 /**
  * Webhooks info storage
- * Backend: 'commit-hooks/webhooks.json' file under pluginData folder
+ * Backend: 'commit-hooks/webhooks.dat' snapshot file (see WebHooksSnapshot) and 'commit-hooks/webhooks.journal.<node id>.<generation>' changes journal
+ * segments of each node (see WebHooksJournal) under pluginData folder.
+ * For large installations data could be split by repository server and owner into 'teamcity.commitHooks.webHookStorage.shards' shards
+ * ('commit-hooks/webhooks-shards-N/' folder), each shard has own snapshot and journal files, file watcher and persisting schedule,
+ * so only modified shards are written and reloaded.
+ * Data stored in JSON format ('commit-hooks/webhooks.json', version 1) or with other number of shards is migrated automatically on server start
  *
- * Data loaded from disk only on server start
- * Data persisted onto disk only on server stop
+ * Shard data loaded from disk on server start (in background, shards in parallel, see [isReady]) and on shard snapshot file modification (e.g. by another node).
+ * On modification only differences are applied: added and removed hooks are added/removed, runtime state of existing hooks
+ * is updated only if stored version stamp is newer than in-memory one, so local not yet persisted changes are kept
+ * Hooks additions and removals are appended to journal in background.
+ * Runtime state changes (status, lastUsed and branch revisions) only mark hook dirty, current state of dirty hooks
+ * is appended to journal by background flusher (write-behind) at most once per 'journal.flushInterval.ms'
+ * and no later than 'journal.maxStaleness.ms' after modification, so flush rate doesn't depend on deliveries rate.
+ * Journal is compacted into snapshot after hooks are added, once it grows big enough and on server stop.
+ *
+ * Several nodes could share data directory: each node appends to own journal segments, records appended by other nodes
+ * are applied every 'watchInterval' ms. Compaction is done under file lock: snapshot and journals of all nodes are loaded first,
+ * so snapshot contains changes of other nodes too, only own journal segments are removed afterwards
  */
-class WebHooksStorage(cacheProvider: CacheProvider,
-                      fileWatcherFactory: FileWatcherFactory,
-                      private val myServerPaths: ServerPaths,
-                      private val myServerEventDispatcher: EventDispatcher<BuildServerListener>,
-                      executorServices: ExecutorServices) {
+class WebHooksStorage internal constructor(cacheProvider: CacheProvider,
+                                           fileWatcherFactory: FileWatcherFactory,
+                                           private val myServerPaths: ServerPaths,
+                                           private val myServerEventDispatcher: EventDispatcher<BuildServerListener>,
+                                           executorServices: ExecutorServices,
+                                           private val myNodeId: String) {
+
+    constructor(cacheProvider: CacheProvider,
+                fileWatcherFactory: FileWatcherFactory,
+                serverPaths: ServerPaths,
+                serverEventDispatcher: EventDispatcher<BuildServerListener>,
+                executorServices: ExecutorServices) :
+            this(cacheProvider, fileWatcherFactory, serverPaths, serverEventDispatcher, executorServices, CurrentNodeInfo.getNodeId())
 
     companion object {
         private val LOG: Logger = Util.getLogger(WebHooksStorage::class.java)
 
         private const val VERSION: Int = 1
 
+        internal fun nextVersion(version: Long): Long = Math.max(System.currentTimeMillis(), version + 1)
+
         val hooksListType: Type = object : TypeToken<List<WebHookInfo>>() {}.type
 
         val gson: Gson = GsonBuilder()
@@ -86,22 +117,100 @@ class WebHooksStorage(cacheProvider: CacheProvider,
     // teamcity-github-enterprise.labs.intellij.net/Vlad/test/88
     // github.com/VladRassokhin/intellij-hcl/9124004
 
-    private val myData = HashMap<RepoKey, MutableList<WebHookInfo>>()
-    private val myDataLock = ReentrantReadWriteLock()
+    // Immutable per-repository lists, replaced on modification (copy-on-write) under ConcurrentHashMap bin lock
+    private val myData = ConcurrentHashMap<RepoKey, List<WebHookInfo>>()
+
+    // Secondary indexes, updated along with myData entry of hook repository
+    private val myByPubKey = ConcurrentHashMap<String, WebHookInfo>()
+    private val myById = ConcurrentHashMap<Pair<String, Long>, WebHookInfo>()
     private val executor = executorServices.lowPriorityExecutorService
-    private var isPersistTaskScheduled = AtomicBoolean(false)
+    private val myScheduler = executorServices.normalExecutorService
+
+    private val myWatchInterval = TeamCityProperties.getInteger("teamcity.commitHooks.webHookStorage.watchInterval", 5000)
+    @Volatile private var myJournalWatcher: ScheduledFuture<*>? = null
+
+    private val myShards: List<Shard> = getShardsLayout(getShardsCount()).map { (file, journal) ->
+        Shard(file, journal, fileWatcherFactory.createSingleFilesWatcher(file, myWatchInterval))
+    }
+
+    private class DirtyHook {
+        var status = false
+        var lastUsed = false
+        val branches = HashSet<String>()
+    }
+
+    private val myHookChangeListener = object : WebHookInfo.ChangeListener {
+        override fun statusChanged(hook: WebHookInfo) {
+            markDirty(hook) { it.status = true }
+        }
 
-    private val myFileWatcher = fileWatcherFactory.createSingleFilesWatcher(getStorageFile(),
-                                                                            TeamCityProperties.getInteger("teamcity.commitHooks.webHookStorage.watchInterval", 5000))
+        override fun lastUsedChanged(hook: WebHookInfo) {
+            markDirty(hook) { it.lastUsed = true }
+        }
+
+        override fun branchesChanged(hook: WebHookInfo, branches: Collection<String>) {
+            markDirty(hook) { it.branches.addAll(branches) }
+        }
+    }
+
+    private fun markDirty(hook: WebHookInfo, mark: (DirtyHook) -> Unit) {
+        hook.version = nextVersion(hook.version)
+        val key = hook.key.toMapKey()
+        val shard = getShard(key)
+        shard.dirty.compute(key) { _, dirty ->
+            val result = dirty ?: IdentityHashMap()
+            mark(result.getOrPut(hook) { DirtyHook() })
+            result
+        }
+        shard.scheduleJournalFlush()
+    }
+
+    // Callers waiting for hook with given public key to be stored, see #awaitHook
+    private val myHookWaiters = ConcurrentHashMap<String, HookWaiter>()
+
+    private class HookWaiter {
+        val future = CompletableFuture<WebHookInfo>()
+        var waiting = 0
+    }
+
+    private val myWarmUp = StorageWarmUp("webhooks storage", executor, LOG)
+
+    /**
+     * Whether stored hooks are loaded, until then hooks are not found by public key or repository
+     */
+    fun isReady(): Boolean = myWarmUp.isReady
+
+    /**
+     * Runs [action] once stored hooks are loaded
+     */
+    fun whenReady(action: () -> Unit) = myWarmUp.whenReady(action)
 
     private val myServerListener = object : BuildServerAdapter() {
         override fun serverStartup() {
-            load()
-
-            myFileWatcher.registerListener {
-                load()
+            myWarmUp.start({ migrate() }, myShards.map { shard ->
+                {
+                    shard.load()
+
+                    shard.fileWatcher.registerListener {
+                        shard.load()
+                    }
+                    shard.fileWatcher.start()
+                }
+            }) {
+                val hooks = myData.values.sumOf { it.size }
+                "$hooks ${hooks.pluralize("webhook")} of ${myData.size} ${myData.size.pluralize("repository")} in ${myShards.size} ${myShards.size.pluralize("shard")}"
+            }
+            myWarmUp.whenReady {
+                myJournalWatcher = myScheduler.scheduleWithFixedDelay({
+                    for (shard in myShards) {
+                        try {
+                            shard.replayNew()
+                        } catch (e: Exception) {
+                            LOG.warnAndDebugDetails("Cannot apply webhooks changes of other nodes from '${shard.file.absolutePath}' journal", e)
+                        }
+                    }
+                }, myWatchInterval.toLong(), myWatchInterval.toLong(), TimeUnit.MILLISECONDS)
             }
-            myFileWatcher.start()
 
             // Drop old caches from pre-release versions of plugin
             try {
@@ -112,8 +221,13 @@ class WebHooksStorage(cacheProvider: CacheProvider,
         }
 
         override fun serverShutdown() {
-            persist {}
-            myFileWatcher.stop()
+            // Snapshot of partially loaded storage would lose stored hooks, journal is enough then
+            val ready = myWarmUp.await(TeamCityProperties.getLong("teamcity.commitHooks.webHookStorage.shutdown.awaitWarmUp.ms", 10000), TimeUnit.MILLISECONDS)
+            myJournalWatcher?.cancel(false)
+            for (shard in myShards) {
+                if (ready) shard.persist {} else shard.flush()
+                shard.fileWatcher.stop()
+            }
         }
     }
 
@@ -139,55 +253,145 @@ class WebHooksStorage(cacheProvider: CacheProvider,
             return hook
         }
 
-        myDataLock.write {
-            @Suppress("NAME_SHADOWING")
-            var hooks = myData[mapKey]
+        var result: WebHookInfo? = null
+        var added = false
+        computeHooks(mapKey) { hooks ->
             @Suppress("NAME_SHADOWING")
             val hook = hooks?.firstOrNull { it.isSame(created) }
-            if (hook != null) return hook
+            if (hook != null) {
+                result = hook
+                return@computeHooks hooks
+            }
 
             val toAdd = WebHookInfo(url = created.url, callbackUrl = created.callbackUrl!!, key = key, status = created.getStatus())
+            toAdd.changeListener = myHookChangeListener
+            toAdd.version = nextVersion(0)
+            addToIndexes(toAdd)
+            getShard(mapKey).journal.added(toAdd)
+            result = toAdd
+            added = true
+            if (hooks == null) listOf(toAdd) else hooks + toAdd
+        }
+        val stored = result!!
+        if (added) {
+            getShard(mapKey).schedulePersist()
+            LOG.info("Added $stored")
+            notifyHookAdded(stored)
+        }
+        return stored
+    }
+
+    /**
+     * Returns future which completes once hook for [info] repository with callback url containing [pubKey] is stored
+     * or with null if it was not stored in [timeoutMs] milliseconds.
+     * Allows to wait for concurrent CreateWebHookAction without blocking threads.
+     */
+    fun awaitHook(info: GitHubRepositoryInfo, pubKey: String, timeoutMs: Long): CompletableFuture<WebHookInfo?> {
+        findHook(info, pubKey)?.let { return CompletableFuture.completedFuture(it) }
 
-            if (hooks == null || hooks.isEmpty()) {
-                hooks = mutableListOf(toAdd)
-                myData[mapKey] = hooks
-            } else {
-                hooks.add(toAdd)
-                myData[mapKey] = hooks
+        val waiter = myHookWaiters.compute(pubKey) { _, w -> (w ?: HookWaiter()).also { it.waiting++ } }!!
+        val result = CompletableFuture<WebHookInfo?>()
+        waiter.future.thenAccept { result.complete(it) }
+
+        // Hook could be stored between first lookup and registration
+        findHook(info, pubKey)?.let { result.complete(it) }
+
+        val timeout = Runnable {
+            // Waiter could be already completed and replaced with a newer one for same key, which should not be affected
+            myHookWaiters.computeIfPresent(pubKey) { _, w -> if (w !== waiter) w else if (--w.waiting <= 0) null else w }
+            if (result.complete(null)) {
+                LOG.debug("Hook with public key '$pubKey' was not stored for repository '${info.id}' in $timeoutMs ms")
             }
-            schedulePersist()
-            LOG.info("Added $toAdd")
-            return toAdd
         }
+        myScheduler.schedule(timeout, timeoutMs, TimeUnit.MILLISECONDS)
+        return result
+    }
+
+    private fun findHook(info: GitHubRepositoryInfo, pubKey: String): WebHookInfo? {
+        return findByPubKey(pubKey)?.takeIf { it.key.toMapKey() == info.toRepoKey() }
+    }
+
+    private fun notifyHookAdded(hook: WebHookInfo) {
+        if (myHookWaiters.isEmpty()) return
+        val pubKey = hook.pubKey ?: return
+        myHookWaiters.remove(pubKey)?.future?.complete(hook)
+    }
+
+    fun findByPubKey(pubKey: String): WebHookInfo? {
+        return myByPubKey[pubKey]
+    }
+
+    /**
+     * @param id hook id on GitHub side, e.g. from 'X-GitHub-Hook-ID' header
+     */
+    fun findById(server: String, id: Long): WebHookInfo? {
+        return myById[getIdIndexKey(server, id)]
+    }
+
+    /**
+     * @return public keys used by all stored hooks
+     */
+    fun getPubKeys(): Set<String> {
+        return HashSet(myByPubKey.keys)
+    }
+
+    private fun getIdIndexKey(server: String, id: Long) = server.trimEnd('/').lowercase() to id
+
+    private fun addToIndexes(hook: WebHookInfo) {
+        hook.pubKey?.let { myByPubKey[it] = hook }
+        myById[getIdIndexKey(hook.key.server, hook.id)] = hook
+    }
+
+    private fun removeFromIndexes(hook: WebHookInfo) {
+        hook.pubKey?.let { myByPubKey.remove(it, hook) }
+        myById.remove(getIdIndexKey(hook.key.server, hook.id), hook)
     }
 
     fun delete(hookInfo: WebHookInfo) {
         LOG.info("Removing $hookInfo")
-        myDataLock.write {
-            myData[hookInfo.key.toMapKey()]?.remove(hookInfo)
+        computeHooks(hookInfo.key.toMapKey()) { hooks ->
+            if (hooks == null) return@computeHooks null
+            val index = hooks.indexOf(hookInfo)
+            if (index < 0) return@computeHooks hooks
+            deleted(hooks[index])
+            hooks.filterIndexed { i, _ -> i != index }.ifEmpty { null }
         }
+        getShard(hookInfo.key.toMapKey()).scheduleJournalFlush()
     }
 
     fun delete(info: GitHubRepositoryInfo, deleteFilter: (WebHookInfo) -> Boolean) {
         if (!getHooks(info).any { deleteFilter(it) }) return
 
-        val key = RepoKey(info.server, info.getRepositoryId())
-        myDataLock.write {
-            val hooks = myData[key]?.toMutableList() ?: return
-            val filtered = hooks.filter { !deleteFilter(it) }.toMutableList()
-            if (filtered.isEmpty()) {
-                myData.remove(key)
-            } else {
-                myData.put(key, filtered)
-            }
+        val key = info.toRepoKey()
+        computeHooks(key) { hooks ->
+            val (removed, filtered) = hooks.orEmpty().partition { deleteFilter(it) }
+            removed.forEach { deleted(it) }
+            filtered.ifEmpty { null }
         }
+        getShard(key).scheduleJournalFlush()
     }
 
-    fun update(server: String, repo: RepositoryId, update: (WebHookInfo) -> Unit): Boolean {
-        val key = RepoKey(server, repo)
-        val hooks = myDataLock.read {
-            myData[key]?.toMutableList() ?: return false
+    /**
+     * Modifies hooks of repository under ConcurrentHashMap bin lock, repositories of its shard are updated along
+     */
+    private fun computeHooks(key: RepoKey, remapping: (List<WebHookInfo>?) -> List<WebHookInfo>?) {
+        myData.compute(key) { _, current ->
+            val result = remapping(current)
+            val keys = getShard(key).keys
+            if (result == null) keys.remove(key) else keys.add(key)
+            result
         }
+    }
+
+    private fun deleted(hook: WebHookInfo) {
+        hook.changeListener = null
+        removeFromIndexes(hook)
+        getShard(hook.key.toMapKey()).journal.deleted(hook)
+    }
+
+    fun update(server: String, repo: RepositoryId, update: (WebHookInfo) -> Unit): Boolean {
+        val key = RepoKey.of(server, repo)
+        val hooks = myData[key] ?: return false
         for (hook in hooks) {
             update(hook)
         }
@@ -195,37 +399,31 @@ class WebHooksStorage(cacheProvider: CacheProvider,
     }
 
     fun getHooks(info: GitHubRepositoryInfo): List<WebHookInfo> {
-        return getHooks(info.server, info.getRepositoryId())
+        return getHooks(info.toRepoKey())
     }
 
     fun getHooks(server: String, repo: RepositoryId): List<WebHookInfo> {
-        return getHooks(RepoKey(server, repo))
+        return getHooks(RepoKey.of(server, repo))
     }
 
     private fun getHooks(key: RepoKey): List<WebHookInfo> {
-        return myDataLock.read {
-            myData[key]?.toList()
-        } ?: emptyList()
+        return myData[key] ?: emptyList()
     }
 
     fun isHasIncorrectHooks(): Boolean {
-        myDataLock.read {
-            for (value in myData.values) {
-                if (value.any { it.status.bad }) return true
-            }
+        for (value in myData.values) {
+            if (value.any { it.status.bad }) return true
         }
         return false
     }
 
     fun getIncorrectHooks(): List<Pair<GitHubRepositoryInfo, WebHookInfo>> {
         val result = ArrayList<Pair<GitHubRepositoryInfo, WebHookInfo>>()
-        myDataLock.read {
-            for ((key, hooks) in myData) {
-                val bad = hooks.filter { it.status.bad }
-                if (bad.isNotEmpty()) {
-                    val info = key.toInfo()
-                    bad.map { info to it }.toCollection(result)
-                }
+        for ((key, hooks) in myData) {
+            val bad = hooks.filter { it.status.bad }
+            if (bad.isNotEmpty()) {
+                val info = key.toInfo()
+                bad.map { info to it }.toCollection(result)
             }
         }
         return result
@@ -233,86 +431,339 @@ class WebHooksStorage(cacheProvider: CacheProvider,
 
     fun getAll(): List<Pair<GitHubRepositoryInfo, WebHookInfo>> {
         val result = ArrayList<Pair<GitHubRepositoryInfo, WebHookInfo>>()
-        myDataLock.read {
-            for ((key, hooks) in myData) {
-                val info = key.toInfo()
-                hooks.map { info to it }.toCollection(result)
-            }
+        for ((key, hooks) in myData) {
+            val info = key.toInfo()
+            hooks.map { info to it }.toCollection(result)
         }
         return result
     }
 
+
+    /**
+     * @return snapshot file of the first shard (the only one by default)
+     */
     fun getStorageFile(): File {
-        return File(myServerPaths.pluginDataDirectory, "commit-hooks/webhooks.json")
+        return myShards[0].file
     }
 
-    private fun schedulePersist() {
-        if (!isPersistTaskScheduled.compareAndSet(false, true))
-            return
-        executor.submit {
-            persist {
-                isPersistTaskScheduled.set(false)
-            }
-        }
+    private fun getStorageDir(): File {
+        return File(myServerPaths.pluginDataDirectory, "commit-hooks")
     }
 
-    private fun persist(before: () -> Unit) {
-        myFileWatcher.runActionWithDisabledObserver {
-            persistImpl(before)
-        }
+    private fun getLegacyStorageFile(): File {
+        return File(getStorageDir(), "webhooks.json")
+    }
+
+    private fun getShardsCount(): Int {
+        return TeamCityProperties.getInteger("teamcity.commitHooks.webHookStorage.shards", 1).coerceAtLeast(1)
+    }
+
+    /**
+     * Single shard is stored in 'webhooks.dat' and 'webhooks.journal',
+     * N shards are stored in 'webhooks-shards-N/webhooks.<i>.dat' and 'webhooks-shards-N/webhooks.<i>.journal'
+     * @return snapshot and journal files of each shard
+     */
+    private fun getShardsLayout(count: Int): List<Pair<File, File>> {
+        if (count == 1) return listOf(File(getStorageDir(), "webhooks.dat") to File(getStorageDir(), "webhooks.journal"))
+        val dir = File(getStorageDir(), "webhooks-shards-$count")
+        return (0 until count).map { File(dir, "webhooks.$it.dat") to File(dir, "webhooks.$it.journal") }
     }
 
-    @Synchronized
-    private fun persistImpl(before: () -> Unit) {
+    private fun getShard(key: RepoKey): Shard {
+        if (myShards.size == 1) return myShards[0]
+        return myShards[Math.floorMod(key.ownerHash, myShards.size)]
+    }
+
+    private fun unload(hook: WebHookInfo) {
+        hook.changeListener = null
+        removeFromIndexes(hook)
+    }
 
-        before()
+    /**
+     * Moves data stored in other layout (JSON file of version 1, single snapshot or different number of shards)
+     * into shards of current layout. Previous snapshot files are kept as backups
+     */
+    private fun migrate() {
+        if (myShards.any { it.file.isFile || it.journal.exists() }) return
 
-        val obj = myDataLock.read {
-            getJsonObjectFromData(myData.values.flatten())
+        val current = myShards.map { it.file }.toSet()
+        val layouts = arrayListOf(getShardsLayout(1))
+        getStorageDir().listFiles { file -> file.isDirectory && file.name.startsWith("webhooks-shards-") }?.forEach { dir ->
+            dir.name.removePrefix("webhooks-shards-").toIntOrNull()?.takeIf { it > 1 }?.let { layouts.add(getShardsLayout(it)) }
         }
+        val sources = layouts.flatten().filter { (file, journal) -> file !in current && (file.isFile || WebHooksJournal(journal, myNodeId).exists()) }
 
-        val file = getStorageFile()
+        val data = HashMap<RepoKey, MutableList<WebHookInfo>>()
+        val legacyFile = getLegacyStorageFile()
+        if (sources.isEmpty()) {
+            if (!legacyFile.isFile) return
+            val obj: JsonObject?
+            try {
+                obj = legacyFile.reader(Charsets.UTF_8).buffered().use {
+                    gson.fromJson<JsonObject>(it, JsonObject::class.java)
+                }
+            } catch(e: Exception) {
+                LOG.warnAndDebugDetails("Cannot read webhooks from file '${legacyFile.absolutePath}'", e)
+                return
+            }
 
+            if (obj == null) {
+                LOG.warn("Stored object is null")
+                return
+            }
+
+            val stored = getDataFromJsonObject(obj) ?: return
+            stored.mapValuesTo(data) { it.value.toMutableList() }
+        }
+        for ((file, journal) in sources) {
+            val offsets = HashMap<String, Long>()
+            if (file.isFile) {
+                try {
+                    val stored = file.inputStream().use { WebHooksSnapshot.read(it, offsets) }
+                    if (stored == null) {
+                        LOG.warn("Stored data in file '${file.absolutePath}' have unsupported version")
+                    } else {
+                        stored.groupByTo(data) { it.key.toMapKey() }
+                    }
+                } catch(e: Exception) {
+                    LOG.warnAndDebugDetails("Cannot read webhooks from file '${file.absolutePath}'", e)
+                }
+            }
+            WebHooksJournal(journal, myNodeId).replay(data, offsets)
+        }
+
+        val hooks = data.values.flatten().distinct()
+        val byShard = hooks.groupBy { getShard(it.key.toMapKey()) }
         try {
-            FileUtil.createParentDirs(file)
-            val writer = file.writer(Charsets.UTF_8).buffered()
-            writer.use {
-                gson.toJson(obj, it)
+            for (shard in myShards) {
+                writeAtomically(shard.file) {
+                    WebHooksSnapshot.write(byShard[shard].orEmpty(), it)
+                }
             }
         } catch(e: Exception) {
-            LOG.warnAndDebugDetails("Cannot write auth-data to file '${file.absolutePath}'", e)
+            LOG.warnAndDebugDetails("Cannot write webhooks to ${myShards.size} ${myShards.size.pluralize("shard")} under '${getStorageDir().absolutePath}'", e)
+            return
         }
+        for ((file, journal) in sources) {
+            backupLegacyFile(file)
+            WebHooksJournal(journal, myNodeId).delete()
+        }
+        backupLegacyFile(legacyFile)
+        LOG.info("Migrated ${hooks.size} ${hooks.size.pluralize("webhook")} to ${myShards.size} ${myShards.size.pluralize("shard")} of version ${WebHooksSnapshot.VERSION} format")
     }
 
+    /**
+     * Applies differences between [data] loaded from disk and hooks of [shard] in memory
+     * @param started time when loading started, hooks modified later are kept
+     * @param keys repositories to apply, all repositories of shard if null
+     */
+    private fun applyLoaded(shard: Shard, data: Map<RepoKey, List<WebHookInfo>>, started: Long, keys: Collection<RepoKey>? = null) {
+        // Apply differences per repository, so readers never see empty storage during reload
+        val added = ArrayList<WebHookInfo>()
+        var removed = 0
+        var updated = 0
+        for (key in keys ?: (data.keys + shard.keys)) {
+            val loaded = data[key] ?: emptyList<WebHookInfo>()
+            computeHooks(key) { current ->
+                val result = ArrayList<WebHookInfo>(loaded.size)
+                var changed = false
+                for (hook in loaded) {
+                    val existing = current?.firstOrNull { it == hook }
+                    if (existing != null) {
+                        if (existing.mergeStored(hook)) updated++
+                        result.add(existing)
+                    } else {
+                        hook.changeListener = myHookChangeListener
+                        addToIndexes(hook)
+                        added.add(hook)
+                        result.add(hook)
+                        changed = true
+                    }
+                }
+                current?.forEach { hook ->
+                    if (result.contains(hook)) return@forEach
+                    if (hook.version >= started) {
+                        // Added or modified concurrently with reload
+                        result.add(hook)
+                    } else {
+                        unload(hook)
+                        removed++
+                        changed = true
+                    }
+                }
+                when {
+                    !changed -> current
+                    result.isEmpty() -> null
+                    else -> result
+                }
+            }
+        }
+        val source = if (keys == null) "'${shard.file.absolutePath}'" else "journals of other nodes"
+        LOG.info("Loaded webhooks from $source: ${added.size} added, $removed removed, $updated updated")
+        // Hook could be stored by another node
+        added.forEach { notifyHookAdded(it) }
+    }
+
+    /**
+     * Part of storage with own snapshot and journal files, file watcher and persisting schedule.
+     * Repositories are distributed between shards by server and owner, see 'teamcity.commitHooks.webHookStorage.shards'
+     */
+    private inner class Shard(val file: File, journalFile: File, val fileWatcher: FileWatcher) {
+        val journal = WebHooksJournal(journalFile, myNodeId)
+
+        // Repositories of this shard, updated along with myData, so that shard is persisted and reloaded without scanning all repositories
+        val keys: MutableSet<RepoKey> = ConcurrentHashMap.newKeySet()
 
-    @Synchronized private fun load(): Boolean {
-        val file = getStorageFile()
+        // Held by node which compacts or loads shard, see withFileLock
+        private val lockFile = File(file.path + ".lock")
 
-        val obj: JsonObject?
-        try {
-            FileUtil.createParentDirs(file)
-            if (!file.isFile) return false
-            obj = file.reader(Charsets.UTF_8).buffered().use {
-                gson.fromJson<JsonObject>(it, JsonObject::class.java)
+        // Hooks with runtime state not yet written to journal
+        val dirty = ConcurrentHashMap<RepoKey, MutableMap<WebHookInfo, DirtyHook>>()
+
+        private val isPersistTaskScheduled = AtomicBoolean(false)
+        private val isJournalFlushScheduled = AtomicBoolean(false)
+        @Volatile private var myLastJournalFlush = 0L
+
+        fun schedulePersist() {
+            if (!isPersistTaskScheduled.compareAndSet(false, true))
+                return
+            executor.submit {
+                persist {
+                    isPersistTaskScheduled.set(false)
+                }
             }
-        } catch(e: Exception) {
-            LOG.warnAndDebugDetails("Cannot read auth-data from file '${file.absolutePath}'", e)
-            return false
         }
 
-        if (obj == null) {
-            LOG.warn("Stored object is null")
-            return false
+        fun scheduleJournalFlush() {
+            if (!isJournalFlushScheduled.compareAndSet(false, true))
+                return
+            val interval = TeamCityProperties.getLong("teamcity.commitHooks.webHookStorage.journal.flushInterval.ms", 1000)
+            val maxStaleness = TeamCityProperties.getLong("teamcity.commitHooks.webHookStorage.journal.maxStaleness.ms", 5000)
+            val delay = Math.max(0, Math.min(myLastJournalFlush + interval - System.currentTimeMillis(), maxStaleness))
+            myScheduler.schedule(Runnable {
+                isJournalFlushScheduled.set(false)
+                myLastJournalFlush = System.currentTimeMillis()
+                flush()
+                if (journal.size > TeamCityProperties.getInteger("teamcity.commitHooks.webHookStorage.journal.maxRecords", 10000)) {
+                    schedulePersist()
+                }
+            }, delay, TimeUnit.MILLISECONDS)
+        }
+
+        /**
+         * Writes current state of dirty hooks to journal file
+         */
+        fun flush() {
+            flushDirty()
+            journal.flush()
         }
 
-        val data = getDataFromJsonObject(obj) ?: return false
+        /**
+         * Appends current state of dirty hooks to journal
+         */
+        private fun flushDirty() {
+            for (key in dirty.keys.toList()) {
+                val hooks = dirty.remove(key) ?: continue
+                for ((hook, fields) in hooks) {
+                    // Skip removed or reloaded hooks
+                    if (hook.changeListener !== myHookChangeListener) continue
+                    if (fields.status) journal.statusChanged(hook)
+                    if (fields.lastUsed) journal.lastUsedChanged(hook)
+                    if (fields.branches.isNotEmpty()) journal.branchesChanged(hook, fields.branches)
+                }
+            }
+        }
 
-        myDataLock.write {
-            myData.clear()
-            for ((key, value) in data) {
-                myData[key] = value.toMutableList()
+        fun persist(before: () -> Unit) {
+            if (!myWarmUp.isReady) {
+                // Snapshot written before shard is loaded would lose stored hooks
+                myWarmUp.whenReady { persist(before) }
+                return
+            }
+            fileWatcher.runActionWithDisabledObserver {
+                persistImpl(before)
             }
         }
-        return true
+
+        @Synchronized
+        private fun persistImpl(before: () -> Unit) {
+
+            before()
+
+            withFileLock(lockFile) {
+                // Changes made after rotation would go to new segment, all previous ones would be in snapshot
+                flushDirty()
+                journal.rotate()
+
+                // Snapshot or journals could be modified by other nodes since last load, their changes should not be lost
+                loadImpl()
+
+                val hooks = keys.flatMap { myData[it].orEmpty() }
+
+                try {
+                    writeAtomically(file) {
+                        WebHooksSnapshot.write(hooks, it, journal.getOffsets())
+                    }
+                    journal.compacted()
+                } catch(e: Exception) {
+                    LOG.warnAndDebugDetails("Cannot write webhooks to file '${file.absolutePath}'", e)
+                }
+            }
+        }
+
+        /**
+         * Applies records appended to journal by other nodes since last load
+         */
+        @Synchronized
+        fun replayNew() {
+            val records = journal.readNew()
+            if (records.isEmpty()) return
+            val started = System.currentTimeMillis()
+            val affected = journal.getRepoKeys(records)
+            // Records are applied to copies, changes are merged by version stamps as on load
+            val data = HashMap<RepoKey, MutableList<WebHookInfo>>()
+            for (key in affected) {
+                myData[key]?.let { hooks -> data[key] = hooks.mapTo(ArrayList()) { it.copy() } }
+            }
+            if (journal.apply(records, data) > 0) {
+                applyLoaded(this, data, started, affected)
+            }
+        }
+
+        @Synchronized
+        fun load(): Boolean {
+            return withFileLock(lockFile) { loadImpl() }
+        }
+
+        private fun loadImpl(): Boolean {
+            val started = System.currentTimeMillis()
+            val data = HashMap<RepoKey, MutableList<WebHookInfo>>()
+            val offsets = HashMap<String, Long>()
+            if (file.isFile) {
+                val stored: List<WebHookInfo>?
+                try {
+                    stored = file.inputStream().use { WebHooksSnapshot.read(it, offsets) }
+                } catch(e: Exception) {
+                    LOG.warnAndDebugDetails("Cannot read webhooks from file '${file.absolutePath}'", e)
+                    return false
+                }
+
+                if (stored == null) {
+                    LOG.warn("Stored data in file '${file.absolutePath}' have unsupported version")
+                    return false
+                }
+                stored.groupByTo(data) { it.key.toMapKey() }
+            }
+
+            val replayed = journal.replay(data, offsets)
+            if (replayed > 0) {
+                LOG.info("Applied $replayed webhooks ${replayed.pluralize("change")} from journal")
+            } else if (!file.isFile) {
+                return false
+            }
+
+            applyLoaded(this, data, started)
+            return true
+        }
     }
-}
\ No newline at end of file
+}
@@ -11,19 +11,19 @@ import jetbrains.buildServer.serverSide.healthStatus.*
 import jetbrains.buildServer.serverSide.oauth.OAuthConnectionsManager
 import jetbrains.buildServer.serverSide.oauth.OAuthTokensStorage
 import jetbrains.buildServer.serverSide.oauth.github.GitHubClientEx
-import jetbrains.buildServer.serverSide.oauth.github.GitHubClientFactory
 import jetbrains.buildServer.serverSide.oauth.github.GitHubConstants
 import jetbrains.buildServer.users.UserModelEx
 import jetbrains.buildServer.util.StringUtil
 import jetbrains.buildServer.vcs.SVcsRoot
 import org.jetbrains.teamcity.github.action.GetAllWebHooksAction
 import org.jetbrains.teamcity.github.action.TestWebHookAction
-import org.jetbrains.teamcity.github.controllers.GitHubWebHookListener
 import org.jetbrains.teamcity.github.controllers.Status
 import org.jetbrains.teamcity.github.controllers.good
 import java.util.*
-import java.util.concurrent.ScheduledFuture
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.math.max
+import kotlin.math.min
 
 class WebhookPeriodicalChecker(
         private val myProjectManager: ProjectManager,
@@ -34,7 +34,8 @@ class WebhookPeriodicalChecker(
         private val myWebHooksManager: WebHooksManager,
         private val myExecutorServices: ExecutorServices,
         private val myOAuthTokensStorage: OAuthTokensStorage,
-        private val myTokensHelper: TokensHelper
+        private val myTokensHelper: TokensHelper,
+        private val myClientPool: GitHubClientPool
 ) : HealthStatusReport() {
 
 
@@ -47,6 +48,31 @@ class WebhookPeriodicalChecker(
         val CATEGORY: ItemCategory = ItemCategory("GitHubWebHookProblem", "GitHub webhook problem", ItemSeverity.WARN)
 
         const val CHECK_INTERVAL_PROPERTY = "teamcity.githubWebhooks.checkInterval.min"
+        const val THREADS_PROPERTY = "teamcity.githubWebhooks.checker.threads"
+        const val PER_SERVER_CONCURRENCY_PROPERTY = "teamcity.githubWebhooks.checker.perServerConcurrency"
+    }
+
+    // Repositories are checked in parallel, number of concurrent requests to each server is limited separately, see #runPerServer
+    private val myThreadsCounter = AtomicInteger()
+    private val myCheckExecutor: ThreadPoolExecutor
+    // Run itself is spread over most of the check interval (see RateLimitPacer), so it's coordinated on own thread
+    // rather than on shared executor. At most one run at once, next one is skipped if previous is still in progress
+    private val myRunExecutor = ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, SynchronousQueue(), ThreadFactory { runnable ->
+        val thread = Thread(runnable, "GitHub Webhooks Checker Run")
+        thread.isDaemon = true
+        thread
+    })
+    private val myPacer = RateLimitPacer()
+    private val myCheckScheduler = HookCheckScheduler()
+
+    init {
+        val threads = max(1, TeamCityProperties.getInteger(THREADS_PROPERTY, 8))
+        myCheckExecutor = ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, LinkedBlockingQueue(), ThreadFactory { runnable ->
+            val thread = Thread(runnable, "GitHub Webhooks Checker " + myThreadsCounter.incrementAndGet())
+            thread.isDaemon = true
+            thread
+        })
+        myCheckExecutor.allowCoreThreadTimeOut(true)
     }
 
     override fun getType(): String = TYPE
@@ -56,11 +82,31 @@ class WebhookPeriodicalChecker(
     override fun getCategories(): MutableCollection<ItemCategory> = arrayListOf(CATEGORY)
 
     fun init() {
-        myTask = myExecutorServices.normalExecutorService.scheduleWithFixedDelay({ doCheck() }, 3, TeamCityProperties.getLong(CHECK_INTERVAL_PROPERTY, 15), TimeUnit.MINUTES)
+        // Run itself is spread over most of the interval (see RateLimitPacer), so runs are started at fixed rate rather than with delay after previous one
+        myTask = myExecutorServices.normalExecutorService.scheduleAtFixedRate({ startCheck() }, 3, TeamCityProperties.getLong(CHECK_INTERVAL_PROPERTY, 15), TimeUnit.MINUTES)
     }
 
     fun destroy() {
         myTask?.cancel(false)
+        myRunExecutor.shutdownNow()
+        myCheckExecutor.shutdownNow()
+    }
+
+    /**
+     * Hands periodical check over to own thread, so shared executor thread is not held while requests are paced
+     */
+    private fun startCheck() {
+        try {
+            myRunExecutor.execute {
+                try {
+                    doCheck()
+                } catch (e: Exception) {
+                    LOG.warnAndDebugDetails("Periodical GitHub Webhooks check failed", e)
+                }
+            }
+        } catch (e: RejectedExecutionException) {
+            if (!myRunExecutor.isShutdown) LOG.info("Previous periodical GitHub Webhooks check is still in progress, check skipped")
+        }
     }
 
     override fun canReportItemsFor(scope: HealthStatusScope): Boolean {
@@ -76,31 +122,31 @@ class WebhookPeriodicalChecker(
         val gitRoots = HashSet<SVcsRoot>()
         Util.findSuitableRoots(scope) { gitRoots.add(it); true }
 
-        val incorrectHooks = myWebHooksStorage.getIncorrectHooks()
-        val incorrectHooksInfos = incorrectHooks.map { it.first }.toHashSet()
+        // Repositories are compared via keys: case of urls in VCS roots may differ from case of stored hooks
+        val incorrectHooks = myWebHooksStorage.getIncorrectHooks().groupBy({ it.first.toRepoKey() }, { it.second })
 
         val split = GitHubWebHookSuggestion.splitRoots(gitRoots)
 
-        val myIncorrectHooksKeys = myIncorrectHooks.asMap().keys.toHashSet()
         val filtered = split.entrySet()
-                .filter { it.key in myIncorrectHooksKeys || it.key in incorrectHooksInfos }
+                .filter { it.key.toRepoKey().let { key -> myIncorrectHooks.getIfPresent(key) != null || key in incorrectHooks } }
                 .map { it.key to it.value }.toMap()
 
         for ((info, roots) in filtered) {
-            val hook = incorrectHooks.firstOrNull { it.first == info }?.second ?: myWebHooksStorage.getHooks(info).firstOrNull()
+            val key = info.toRepoKey()
+            val hook = incorrectHooks[key]?.firstOrNull() ?: myWebHooksStorage.getHooks(info).firstOrNull()
             if (hook == null) {
                 // Completely removed, even from our storage. Let's forget about it
-                myIncorrectHooks.invalidate(info)
+                myIncorrectHooks.invalidate(key)
                 continue
             }
             if (myWebHooksStorage.getHooks(info).any { it.status.good }) {
                 // Installed new hook or fixed previous one
-                myIncorrectHooks.invalidate(info)
+                myIncorrectHooks.invalidate(key)
                 continue
             }
             val id = info.server + "#" + hook.id
 
-            val reason = myIncorrectHooks.getIfPresent(info) ?: "Unknown reason"
+            val reason = myIncorrectHooks.getIfPresent(key) ?: "Unknown reason"
 
             val item = HealthStatusItem("GitHubWebHook.I.$id", CATEGORY, mapOf(
                     "GitHubInfo" to info,
@@ -116,24 +162,141 @@ class WebhookPeriodicalChecker(
         }
     }
 
-    fun doCheck() {
+    private fun reportBranchRevisionsMemoryUsage(hooks: Collection<Pair<GitHubRepositoryInfo, WebHookInfo>>) {
+        var total = 0L
+        var count = 0L
+        for ((info, hook) in hooks) {
+            val usage = hook.getBranchRevisionsMemoryUsage()
+            val revisions = hook.getBranchRevisionsCount()
+            total += usage
+            count += revisions
+            if (LOG.isDebugEnabled) {
+                LOG.debug("Webhook '${hook.url}' of repository '${info.id}' keeps $revisions branch revisions using ~$usage bytes")
+            }
+        }
+        LOG.info("Webhooks keep $count branch revisions of ${hooks.size} ${StringUtil.pluralize("webhook", hooks.size)} using ~$total bytes")
+    }
+
+    /**
+     * @param forced whether all hooks should be checked at once, otherwise only hooks due to check (see [HookCheckScheduler])
+     * are checked with requests spread over check interval (see [RateLimitPacer])
+     */
+    fun doCheck(forced: Boolean = false) {
+        if (!isStoragesReady()) {
+            // Partially loaded storages would make hooks and auth data look unused or missing
+            LOG.info("Webhooks or auth data storage is not loaded yet, periodical GitHub Webhooks check skipped")
+            return
+        }
         LOG.info("Periodical GitHub Webhooks checker started")
-        val ignoredServers = ArrayList<String>()
+        val started = System.currentTimeMillis()
+        val interval = TimeUnit.MINUTES.toMillis(TeamCityProperties.getLong(CHECK_INTERVAL_PROPERTY, 15))
+        val deadline = if (forced) null else started + interval
+        val ignoredServers: MutableSet<String> = ConcurrentHashMap.newKeySet()
 
         myAuthDataCleaner.cleanup()
+        myPacer.cleanup()
 
-        val toCheck = ArrayDeque(myWebHooksStorage.getAll())
-        val toPing = ArrayDeque<Triple<GitHubRepositoryInfo, Pair<GitHubClientEx, String>, WebHookInfo>>()
-        if (toCheck.isEmpty()) {
+        val all = myWebHooksStorage.getAll()
+        reportBranchRevisionsMemoryUsage(all)
+        val toCheck = if (forced) all else myCheckScheduler.selectDue(all, started)
+        val toPing = ConcurrentLinkedQueue<Triple<GitHubRepositoryInfo, Pair<GitHubClientEx, String>, WebHookInfo>>()
+        if (all.isEmpty()) {
             LOG.debug("No configured webhooks found")
         } else {
-            LOG.debug("Will check ${toCheck.size} ${StringUtil.pluralize("webhook", toCheck.size)}")
+            LOG.debug("Will check ${toCheck.size} of ${all.size} ${StringUtil.pluralize("webhook", all.size)}")
         }
-        while (toCheck.isNotEmpty()) {
-            val pair = toCheck.pop()
+
+        // Hooks of same repository are checked sequentially since all of them are loaded at once
+        val checks = groupByServer(toCheck) { it.first }
+        val checksRun = myPacer.startRun(checks.mapValues { it.value.size }, deadline)
+        runPerServer(checks) { hooks ->
+            if (checkRepository(ArrayDeque(hooks), checksRun, ignoredServers, toPing)) {
+                val info = hooks.first().first
+                myCheckScheduler.checked(myWebHooksStorage.getHooks(info), started, interval)
+            }
+        }
+
+        val pings = groupByServer(toPing.toList()) { it.first }
+        val pingsRun = myPacer.startRun(pings.mapValues { it.value.sumOf { repository -> repository.size } }, deadline)
+        runPerServer(pings) { repositoryPings ->
+            for ((info, pair, hi) in repositoryPings) {
+                if (ignoredServers.contains(info.server)) continue
+                val ghc = pair.first
+                if (!pace(pingsRun, info, pair.second)) continue
+                try {
+                    TestWebHookAction.doRun(info, ghc, myWebHooksManager, hi)
+                } catch(e: GitHubAccessException) {
+                    // Ignore
+                } finally {
+                    updateRateLimit(ghc, info, pair.second)
+                }
+            }
+        }
+
+        val cache = myWebHooksManager.responseCache.getStatistics()
+        LOG.info("Periodical GitHub Webhooks checker finished in ${System.currentTimeMillis() - started} ms, responses cache: ${cache.hits} hits, ${cache.misses} misses")
+    }
+
+    /**
+     * @return items grouped by repository, queued per repository server
+     */
+    private fun <T> groupByServer(items: Collection<T>, repository: (T) -> GitHubRepositoryInfo): Map<String, Queue<List<T>>> {
+        return items.groupBy(repository).entries.groupBy { it.key.server }.mapValues { ConcurrentLinkedQueue(it.value.map { entry -> entry.value }) }
+    }
+
+    /**
+     * Processes queued items of all servers in parallel on dedicated pool,
+     * at most 'teamcity.githubWebhooks.checker.perServerConcurrency' items of same server at once.
+     * Returns once all items are processed
+     */
+    private fun <T> runPerServer(queues: Map<String, Queue<T>>, action: (T) -> Unit) {
+        val limit = max(1, TeamCityProperties.getInteger(PER_SERVER_CONCURRENCY_PROPERTY, 2))
+        val workers = ArrayList<Future<*>>()
+        for ((server, queue) in queues) {
+            val worker = Runnable {
+                while (true) {
+                    val item = queue.poll() ?: break
+                    try {
+                        action(item)
+                    } catch (e: Exception) {
+                        LOG.warnAndDebugDetails("Failed to check webhooks of server '$server'", e)
+                    }
+                }
+            }
+            repeat(min(limit, queue.size)) {
+                try {
+                    workers.add(myCheckExecutor.submit(worker))
+                } catch (e: RejectedExecutionException) {
+                    worker.run()
+                }
+            }
+        }
+        for (worker in workers) {
+            try {
+                worker.get()
+            } catch (e: ExecutionException) {
+                LOG.warnAndDebugDetails("Failed to check webhooks", e.cause ?: e)
+            } catch (e: InterruptedException) {
+                workers.forEach { it.cancel(true) }
+                Thread.currentThread().interrupt()
+                return
+            }
+        }
+    }
+
+    /**
+     * Checks hooks of single repository, hooks whose check should be retried are added back to [hooks]
+     * @return false if check was skipped, e.g. due to exhausted request quota
+     */
+    private fun checkRepository(hooks: ArrayDeque<Pair<GitHubRepositoryInfo, WebHookInfo>>,
+                                run: RateLimitPacer.Run,
+                                ignoredServers: MutableSet<String>,
+                                toPing: Queue<Triple<GitHubRepositoryInfo, Pair<GitHubClientEx, String>, WebHookInfo>>): Boolean {
+        var checked = true
+        while (hooks.isNotEmpty()) {
+            val pair = hooks.pop()
             val (info, hook) = pair
-            val callbackUrl = hook.callbackUrl
-            val pubKey = GitHubWebHookListener.getPubKeyFromRequestPath(callbackUrl)
+            val pubKey = hook.pubKey
             if (pubKey == null || pubKey.isBlank()) {
                 // Old hook format
                 LOG.warn("Callback url (${hook.callbackUrl}) of hook '${hook.url}' does not contains security check public key")
@@ -180,29 +343,33 @@ class WebhookPeriodicalChecker(
 
             if (ignoredServers.contains(info.server)) {
                 // Server ignored for some time due to error on github
+                checked = false
                 continue
             }
 
-            val ghc = GitHubClientFactory.createGitHubClient(connection.parameters[GitHubConstants.GITHUB_URL_PARAM]!!)
+            val serverUrl = connection.parameters[GitHubConstants.GITHUB_URL_PARAM]!!
 
             var success = false
             var retry = false
+            checked = false
             tokens@for (token in tokens) {
-                ghc.setOAuth2Token(token.accessToken)
+                if (!pace(run, info, token.accessToken)) continue
+                checked = true
+                val ghc = myClientPool.getClient(serverUrl, token.accessToken)
                 try {
                     LOG.debug("Checking webhook status for '${info.id}' repository")
                     // GetAllWebHooksAction will automatically update statuses in all hooks for repository if succeed
                     val loaded = GetAllWebHooksAction.doRun(info, ghc, myWebHooksManager)
                     LOG.debug("Successfully fetched webhooks for '${info.id}' repository from GitHub server")
 
-                    // Since we've loaded all hooks for repository 'info' it's safe to remove others for same repo from queue
-                    toCheck.removeAll { it.first == info }
+                    // Since we've loaded all hooks for repository 'info' it's safe to skip others of same repo
+                    hooks.clear()
 
                     // Remove hooks removed on remote server from storages.
                     val removed = myWebHooksStorage.getHooks(info).filter { it.status == Status.MISSING }
                     if (removed.isNotEmpty()) {
                         LOG.info("$removed ${removed.size.pluralize("webhook")} missing on remote server and would be removed locally")
-                        val pubKeysToRemove = removed.mapNotNull { GitHubWebHookListener.getPubKeyFromRequestPath(it.callbackUrl) }
+                        val pubKeysToRemove = removed.mapNotNull { it.pubKey }
                         myWebHooksStorage.delete(info) {it in removed}
                         myAuthDataStorage.remove(myAuthDataStorage.findAllForRepository(info).filter { it.public in pubKeysToRemove })
                     }
@@ -240,6 +407,7 @@ class WebhookPeriodicalChecker(
                         GitHubAccessException.Type.InvalidCredentials -> {
                             LOG.warn("Removing incorrect (outdated) token (user:${token.oauthLogin}, scope:${token.scope})")
                             myOAuthTokensStorage.removeToken(connection.tokenStorageId, token)
+                            myClientPool.invalidate(token.accessToken)
                             retry = true
                         }
                         GitHubAccessException.Type.TokenScopeMismatch -> {
@@ -270,44 +438,34 @@ class WebhookPeriodicalChecker(
                             break@tokens
                         }
                     }
+                } finally {
+                    updateRateLimit(ghc, info, token.accessToken)
                 }
             }
 
             if (!success && retry) {
-                toCheck.add(pair)
+                hooks.add(pair)
             }
 
-            checkQuotaLimit(ghc, ignoredServers, info)
         }
-
-        for ((info, pair, hi) in toPing) {
-            if (ignoredServers.contains(info.server)) continue
-            val ghc = pair.first
-            ghc.setOAuth2Token(pair.second)
-            try {
-                TestWebHookAction.doRun(info, ghc, myWebHooksManager, hi)
-            } catch(e: GitHubAccessException) {
-                // Ignore
-            }
-            checkQuotaLimit(ghc, ignoredServers, info)
-        }
-
-
-        LOG.info("Periodical GitHub Webhooks checker finished")
+        return checked
     }
 
+    private fun isStoragesReady() = myWebHooksStorage.isReady() && myAuthDataStorage.isReady()
+
     private inner class AuthDataCleaner {
         private var myLastCheckUnusedData: List<AuthDataStorage.AuthData>? = null
         private var myLastCheckTimestamp: Long = 0
 
         fun cleanup() {
             if (!TeamCityProperties.getBooleanOrTrue("teamcity.githubWebhooks.cleanupAuthData")) return
+            // Auth data of hooks not loaded yet would be removed otherwise
+            if (!isStoragesReady()) return
 
             val unused = myLastCheckUnusedData
             val currentTime = System.currentTimeMillis()
             if (unused == null || currentTime - myLastCheckTimestamp > TimeUnit.MINUTES.toMillis(25)) {
-                val usedPublicKeys = myWebHooksStorage.getAll()
-                        .mapNotNull { GitHubWebHookListener.getPubKeyFromRequestPath(it.second.callbackUrl) }.toHashSet()
+                val usedPublicKeys = myWebHooksStorage.getPubKeys()
                 if (unused != null) {
                     myAuthDataStorage.remove(unused.filter { !usedPublicKeys.contains(it.public) })
                 }
@@ -320,18 +478,36 @@ class WebhookPeriodicalChecker(
         }
     }
 
-    private fun checkQuotaLimit(ghc: GitHubClientEx, ignoredServers: ArrayList<String>, info: GitHubRepositoryInfo) {
-        if (ghc.remainingRequests in 0..10) {
-            LOG.debug("Reaching request quota limit (${ghc.remainingRequests}/${ghc.requestLimit}) for server '${info.server}', will try checking it's webhooks later")
-            ignoredServers.add(info.server)
+    /**
+     * Waits for request slot of server and token in [run], see [RateLimitPacer]
+     * @return false if request should not be made since token budget is exhausted
+     */
+    private fun pace(run: RateLimitPacer.Run, info: GitHubRepositoryInfo, token: String): Boolean {
+        val delay = run.reserve(info.server, token)
+        if (delay == null) {
+            LOG.debug("Request quota left for webhooks checking is exhausted for server '${info.server}', will try checking '${info.id}' webhooks later")
+            return false
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay)
+            } catch (e: InterruptedException) {
+                Thread.currentThread().interrupt()
+                return false
+            }
         }
+        return true
+    }
+
+    private fun updateRateLimit(ghc: GitHubClientEx, info: GitHubRepositoryInfo, token: String) {
+        myPacer.update(info.server, token, ghc.remainingRequests, ghc.requestLimit)
     }
 
     // TODO: Should mention HookInfo
-    private val myIncorrectHooks: Cache<GitHubRepositoryInfo, String> = CacheBuilder.newBuilder().expireAfterWrite(120, TimeUnit.MINUTES).build()
+    private val myIncorrectHooks: Cache<RepoKey, String> = CacheBuilder.newBuilder().expireAfterWrite(120, TimeUnit.MINUTES).build()
 
     private fun report(info: GitHubRepositoryInfo, hook: WebHookInfo, reason: String, status: Status = Status.INCORRECT) {
-        myIncorrectHooks.put(info, reason)
+        myIncorrectHooks.put(info.toRepoKey(), reason)
         hook.status = status
     }
 
@@ -15,7 +15,8 @@ import java.util.*
 
 open class ActionContext(val storage: WebHooksStorage,
                          val authDataStorage: AuthDataStorage,
-                         protected val links: WebLinks) {
+                         protected val links: WebLinks,
+                         val responseCache: GitHubResponseCache) {
 
     companion object {
         private val LOG = Util.getLogger(ActionContext::class.java)
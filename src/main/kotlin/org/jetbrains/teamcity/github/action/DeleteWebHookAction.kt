@@ -7,7 +7,6 @@ import org.eclipse.egit.github.core.client.RequestException
 import org.eclipse.egit.github.core.service.RepositoryService
 import org.eclipse.egit.github.core.service.RepositoryServiceEx
 import org.jetbrains.teamcity.github.*
-import org.jetbrains.teamcity.github.controllers.GitHubWebHookListener
 import org.jetbrains.teamcity.github.controllers.Status
 
 object DeleteWebHookAction {
@@ -71,7 +70,7 @@ object DeleteWebHookAction {
             throw e
         }
         context.storage.delete(hook)
-        GitHubWebHookListener.getPubKeyFromRequestPath(hook.callbackUrl)?.let { context.authDataStorage.delete(it) }
+        hook.pubKey?.let { context.authDataStorage.delete(it) }
     }
 
     private fun disable(client: GitHubClientEx, hook: WebHookInfo, info: GitHubRepositoryInfo, service: RepositoryServiceEx, context: ActionContext) {
@@ -4,8 +4,9 @@ package org.jetbrains.teamcity.github.action
 
 import jetbrains.buildServer.serverSide.oauth.github.GitHubClientEx
 import org.eclipse.egit.github.core.RepositoryHook
+import org.eclipse.egit.github.core.RepositoryId
 import org.eclipse.egit.github.core.client.RequestException
-import org.eclipse.egit.github.core.service.RepositoryService
+import org.eclipse.egit.github.core.service.RepositoryServiceEx
 import org.jetbrains.teamcity.github.*
 import java.net.HttpURLConnection.HTTP_FORBIDDEN
 import java.net.HttpURLConnection.HTTP_NOT_FOUND
@@ -17,13 +18,15 @@ object GetAllWebHooksAction {
 
     private val LOG = Util.getLogger(GetAllWebHooksAction::class.java)
 
+    private const val PAGE_SIZE = 100
+
     @Throws(GitHubAccessException::class)
     fun doRun(info: GitHubRepositoryInfo, client: GitHubClientEx, context: ActionContext): Map<RepositoryHook, WebHookInfo> {
-        val service = RepositoryService(client)
+        val service = RepositoryServiceEx(client)
         val repo = info.getRepositoryId()
         try {
             LOG.debug("Loading webhooks for repository ${info.id}")
-            val hooks = service.getHooks(repo)
+            val hooks = getHooks(service, repo, client, context)
             val filtered = hooks.filter {
                 val url = it.callbackUrl
 
@@ -60,4 +63,13 @@ object GetAllWebHooksAction {
             throw e
         }
     }
+
+    /**
+     * First page of hooks is requested via [ActionContext.responseCache], so unchanged hooks list doesn't count against rate limit
+     */
+    private fun getHooks(service: RepositoryServiceEx, repo: RepositoryId, client: GitHubClientEx, context: ActionContext): List<RepositoryHook> {
+        val first: List<RepositoryHook> = context.responseCache.get(client, service.createHooksRequest(repo, PAGE_SIZE))
+        // Rare case of many hooks, other pages are not cached
+        return if (first.size < PAGE_SIZE) first else service.getHooks(repo)
+    }
 }
\ No newline at end of file
@@ -26,7 +26,7 @@ object GetPullRequestDetailsAction {
         val repo = info.getRepositoryId()
         try {
             LOG.debug("Loading pull request #$number data for repository ${info.id}")
-            return service.getPullRequestEx(repo, number)
+            return context.responseCache.get(client, service.createPullRequestExRequest(repo, number))
         } catch (e: RequestException) {
             LOG.warnAndDebugDetails("Failed loading pull request #$number data for repository ${info.id}: ${e.status}", e)
             context.handleCommonErrors(e)
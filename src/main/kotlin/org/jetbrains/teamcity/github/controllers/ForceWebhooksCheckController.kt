@@ -23,7 +23,7 @@ class ForceWebhooksCheckController(private val WebControllerManager: WebControll
     }
 
     override fun doHandle(request: HttpServletRequest, response: HttpServletResponse): ModelAndView? {
-        WebhookPeriodicalChecker.doCheck()
+        WebhookPeriodicalChecker.doCheck(forced = true)
         return null
     }
 
@@ -12,22 +12,25 @@ import jetbrains.buildServer.users.UserModelEx
 import jetbrains.buildServer.users.impl.UserEx
 import jetbrains.buildServer.util.FileUtil
 import jetbrains.buildServer.util.StringUtil
-import jetbrains.buildServer.util.ThreadUtil
 import jetbrains.buildServer.web.openapi.WebControllerManager
 import jetbrains.buildServer.web.util.WebUtil
 import org.eclipse.egit.github.core.Repository
 import org.eclipse.egit.github.core.client.GsonUtilsEx
 import org.eclipse.egit.github.core.event.PingWebHookPayload
-import org.eclipse.egit.github.core.event.PullRequestPayloadEx
-import org.eclipse.egit.github.core.event.PushWebHookPayload
 import org.intellij.lang.annotations.MagicConstant
 import org.jetbrains.teamcity.github.*
+import org.jetbrains.teamcity.github.json.PullRequestEventData
+import org.jetbrains.teamcity.github.json.PushEventData
+import org.jetbrains.teamcity.github.json.WebHookPayloadReader
+import org.jetbrains.teamcity.github.util.BranchSpecMatcher
 import org.jetbrains.teamcity.github.util.WebHooksHelper
 import org.springframework.http.MediaType
 import org.springframework.web.servlet.ModelAndView
 import java.io.*
 import java.util.*
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 import javax.servlet.http.HttpServletRequest
 import javax.servlet.http.HttpServletResponse
 import javax.servlet.http.HttpServletResponse.*
@@ -39,18 +42,26 @@ class GitHubWebHookListener(private val WebControllerManager: WebControllerManag
                             private val PullRequestMergeBranchChecker: PullRequestMergeBranchChecker,
                             private val WebHooksManager: WebHooksManager,
                             private val SecurityContext: SecurityContextEx,
-                            private val webhooksHelper: WebHooksHelper
+                            private val webhooksHelper: WebHooksHelper,
+                            private val DeliveryQueue: WebHookDeliveryQueue
 ) : BaseController() {
 
     companion object {
         const val PATH = "/app/hooks/github"
         const val X_GitHub_Event = "X-GitHub-Event"
+        const val X_GitHub_Delivery = "X-GitHub-Delivery"
+        const val X_GitHub_Hook_ID = "X-GitHub-Hook-ID"
         const val X_Hub_Signature = "X-Hub-Signature"
+        const val X_Hub_Signature_256 = "X-Hub-Signature-256"
 
         val SupportedEvents = listOf("ping", "push", "pull_request")
 
         val MaxPayloadSize = TeamCityProperties.getLong("teamcity.githubWebhooks.payload.maxKb", 5 * 1024L) * 1024L
 
+        private val HookRegistrationTimeout = TeamCityProperties.getLong("teamcity.githubWebhooks.hookRegistrationTimeout.ms", 10 * 1000L)
+        private const val FilterByBranchSpecProperty = "teamcity.githubWebhooks.filterByBranchSpec"
+        private const val SkipKnownRevisionsProperty = "teamcity.githubWebhooks.skipKnownRevisions"
+
         private val AcceptedPullRequestActions = listOf("opened", "edited", "closed", "reopened", "synchronize", "labeled", "unlabeled")
 
         private val LOG = Util.getLogger(GitHubWebHookListener::class.java)
@@ -75,8 +86,53 @@ class GitHubWebHookListener(private val WebControllerManager: WebControllerManag
             }
             return null
         }
+
+        /**
+         * Answers with 503 and 'Retry-After' header, e.g. while storages are loaded on server startup
+         */
+        private fun retryLater(response: HttpServletResponse, text: String,
+                               retryAfter: Int = TeamCityProperties.getInteger("teamcity.githubWebhooks.warmUp.retryAfter.sec", 30)): ModelAndView? {
+            response.setHeader("Retry-After", retryAfter.toString())
+            return simpleText(response, SC_SERVICE_UNAVAILABLE, text)
+        }
     }
 
+    private val myRecentDeliveries = RecentDeliveries(TeamCityProperties.getLong("teamcity.githubWebhooks.deliveriesDeduplication.maxSize", 10000),
+                                                      TeamCityProperties.getLong("teamcity.githubWebhooks.deliveriesDeduplication.window.min", 60),
+                                                      TimeUnit.MINUTES)
+
+    /**
+     * Number of redelivered payloads which were acknowledged without processing
+     */
+    val suppressedDuplicateDeliveries: Long
+        get() = myRecentDeliveries.suppressed
+
+    private val mySkippedKnownRevisions = AtomicLong()
+
+    /**
+     * Number of push and pull_request payloads with already known revisions for which checking for changes was skipped
+     */
+    val skippedKnownRevisions: Long
+        get() = mySkippedKnownRevisions.get()
+
+    /**
+     * State of queue of accepted deliveries: depth, wait time, number of rejected deliveries
+     */
+    val deliveryQueueStatistics: WebHookDeliveryQueue.Statistics
+        get() = DeliveryQueue.getStatistics()
+
+    init {
+        // Pooled Macs keyed with removed or replaced secret are not needed anymore
+        AuthDataStorage.addRemovalListener(object : AuthDataStorage.RemovalListener {
+            override fun removed(data: AuthDataStorage.AuthData) {
+                HMacUtil.invalidate(data.public)
+            }
+        })
+    }
+
+    // Deliveries received while webhooks storage is being loaded on server startup
+    private val myParkedDeliveries = AtomicInteger()
+
     fun register() {
         // Looks like GET is not necessary, POST is enough
         setSupportedMethods(METHOD_POST)
@@ -101,10 +157,16 @@ class GitHubWebHookListener(private val WebControllerManager: WebControllerManag
             return simpleText(response, SC_ACCEPTED, "Unsupported event type '$eventType'")
         }
 
-        val signature = request.getHeader(X_Hub_Signature)
-        if (signature == null || signature.isBlank()) {
-            LOG.warn("Received event without signature ($X_Hub_Signature header)")
-            return simpleText(response, SC_BAD_REQUEST, "'$X_Hub_Signature' header is missing")
+        // Prefer HMAC-SHA256 signature if GitHub sent both
+        val signatureHeader = request.getHeader(X_Hub_Signature_256).nullIfBlank() ?: request.getHeader(X_Hub_Signature)
+        if (signatureHeader == null || signatureHeader.isBlank()) {
+            LOG.warn("Received event without signature ($X_Hub_Signature_256 or $X_Hub_Signature header)")
+            return simpleText(response, SC_BAD_REQUEST, "'$X_Hub_Signature_256' or '$X_Hub_Signature' header is missing")
+        }
+        val signature = HMacUtil.parseSignature(signatureHeader)
+        if (signature == null) {
+            LOG.warn("Received event with malformed signature header: '$signatureHeader'")
+            return simpleText(response, SC_BAD_REQUEST, "Signature header has unexpected format, expected 'sha256=<hex>' or 'sha1=<hex>'")
         }
 
         val path = WebUtil.getPathWithoutAuthenticationType(request)
@@ -116,6 +178,12 @@ class GitHubWebHookListener(private val WebControllerManager: WebControllerManag
 
         LOG.debug("Received hook event with public key in path: $pubKey")
 
+        if (!AuthDataStorage.isReady()) {
+            // Secret key is not loaded yet, signature cannot be verified
+            LOG.info("Received '$eventType' event for public key '$pubKey' while auth data is being loaded, asking to retry later")
+            return retryLater(response, "TeamCity server is starting, auth data is not loaded yet. Please retry later")
+        }
+
         val authData = getAuthData(pubKey)
         if (authData == null) {
             LOG.warn("No stored auth data (secret key) found for public key '$pubKey'")
@@ -129,56 +197,195 @@ class GitHubWebHookListener(private val WebControllerManager: WebControllerManag
             return simpleText(response, SC_NOT_FOUND, "User installed webhook no longer registered in TeamCity. Remove and reinstall webhook.")
         }
 
-        val hookInfo = getHookInfoWithWaiting(authData, eventType)
-        if (hookInfo == null) {
-            // Seems local cache was cleared or it's a organization hook
-            LOG.warn("No stored hook info found for public key '$pubKey' and repository '${authData.repository}'")
-        }
-
         if (request.contentLength >= MaxPayloadSize) {
             val message = "Payload size exceed ${StringUtil.formatFileSize(MaxPayloadSize, 0)} limit"
             LOG.info("$message. Requests url: $path")
             return simpleText(response, SC_REQUEST_ENTITY_TOO_LARGE, message)
         }
 
-        val content: ByteArray
+        // Digest is calculated while payload is being read, no extra copies of payload are made
+        val payload: Payload
+        val verified: Boolean
         try {
-            content = LimitInputStream(request.inputStream, MaxPayloadSize).readBytes()
+            val pair = HMacUtil.withMac(authData.public, authData.secret, signature.algorithm) { mac ->
+                val read = readPayload(LimitInputStream(request.inputStream, MaxPayloadSize), request.contentLength) { bytes, offset, length ->
+                    mac.update(bytes, offset, length)
+                }
+                read to signature.matches(mac.doFinal())
+            }
+            payload = pair.first
+            verified = pair.second
         } catch(e: IOException) {
             LOG.warnAndDebugDetails("Failed to read payload of $eventType event", e)
             return simpleText(response, SC_SERVICE_UNAVAILABLE, "Failed to read payload: ${e.message}")
         } finally {
             FileUtil.close(request.inputStream)
         }
-        if (content.size >= MaxPayloadSize) {
+        if (payload.size >= MaxPayloadSize) {
             val message = "Payload size exceed ${StringUtil.formatFileSize(MaxPayloadSize, 0)} limit"
             LOG.info("$message. Requests url: $path")
             return simpleText(response, SC_REQUEST_ENTITY_TOO_LARGE, message)
         }
 
-        if (!HMacUtil.checkHMac(content, authData.secret.toByteArray(charset("UTF-8")), signature)) {
-            LOG.warn("HMac verification failed for $eventType event")
-            return simpleText(response, SC_FORBIDDEN, "Payload signature verification failed. Ensure request url, '$X_Hub_Signature' header and payload are correct")
+        if (!verified) {
+            LOG.warn("HMac verification failed for $eventType event. From header: '$signature'")
+            return simpleText(response, SC_FORBIDDEN, "Payload signature verification failed. Ensure request url, '$X_Hub_Signature_256' or '$X_Hub_Signature' header and payload are correct")
+        }
+
+        // Checked only after signature verification so unauthenticated requests cannot affect it
+        val deliveryId: String? = request.getHeader(X_GitHub_Delivery).nullIfBlank()
+        if (deliveryId != null && !myRecentDeliveries.markSeen(deliveryId)) {
+            LOG.info("Ignoring '$eventType' event delivery '$deliveryId' as it was already accepted, ${myRecentDeliveries.suppressed} duplicates suppressed so far")
+            return simpleText(response, SC_OK, "Delivery '$deliveryId' was already accepted, ignoring")
+        }
+
+        val hookId = request.getHeader(X_GitHub_Hook_ID)?.trim()?.toLongOrNull()
+        val delivery = Delivery(eventType, deliveryId, hookId, pubKey, authData, user, payload, request.characterEncoding ?: "UTF-8")
+        if (!WebHooksManager.storage.isReady()) {
+            if (park(delivery)) {
+                return simpleText(response, SC_ACCEPTED, "Accepted '$eventType' event, would be processed once webhooks are loaded")
+            }
+            if (deliveryId != null) myRecentDeliveries.forget(deliveryId)
+            return retryLater(response, "TeamCity server is starting, webhooks are not loaded yet. Please retry later")
+        }
+        if (!DeliveryQueue.isEnabled) {
+            val pair = processDelivery(delivery)
+            return pair?.let { simpleText(response, pair.first, pair.second) }
+        }
+        if (DeliveryQueue.offer("'$eventType' event for public key '$pubKey'") { processQueuedDelivery(delivery) }) {
+            return simpleText(response, SC_ACCEPTED, "Accepted '$eventType' event, queued for processing")
+        }
+        // Servlet threads should not be occupied by processing when server is overloaded
+        if (deliveryId != null) myRecentDeliveries.forget(deliveryId)
+        return retryLater(response, "TeamCity server is overloaded with webhook deliveries. Please retry later",
+                          TeamCityProperties.getInteger("teamcity.githubWebhooks.deliveryQueue.retryAfter.sec", 10))
+    }
+
+    /**
+     * Processes already acknowledged [delivery] via delivery queue (or on current thread if queue is disabled).
+     * If queue is full delivery is dropped and its id is forgotten, so GitHub redelivery would be processed
+     */
+    private fun enqueue(delivery: Delivery, description: String, action: () -> Pair<Int, String>?) {
+        if (!DeliveryQueue.isEnabled) {
+            processQueued(delivery, action)
+            return
+        }
+        if (!DeliveryQueue.offer(description) { processQueued(delivery, action) }) {
+            LOG.warn("Webhook deliveries queue is full, $description dropped")
+            delivery.deliveryId?.let { myRecentDeliveries.forget(it) }
+        }
+    }
+
+    /**
+     * Keeps verified delivery until webhooks storage is loaded, at most 'teamcity.githubWebhooks.warmUp.maxParkedDeliveries' deliveries are kept
+     * @return false if there are too many parked deliveries
+     */
+    private fun park(delivery: Delivery): Boolean {
+        if (myParkedDeliveries.incrementAndGet() > TeamCityProperties.getInteger("teamcity.githubWebhooks.warmUp.maxParkedDeliveries", 1000)) {
+            myParkedDeliveries.decrementAndGet()
+            return false
+        }
+        LOG.debug("Webhooks are not loaded yet, '${delivery.eventType}' event for public key '${delivery.pubKey}' would be processed later")
+        WebHooksManager.storage.whenReady {
+            myParkedDeliveries.decrementAndGet()
+            enqueue(delivery, "parked '${delivery.eventType}' event for public key '${delivery.pubKey}'") { processDelivery(delivery) }
+        }
+        return true
+    }
+
+    private class Delivery(val eventType: String,
+                           val deliveryId: String?,
+                           val hookId: Long?,
+                           val pubKey: String,
+                           val authData: AuthDataStorage.AuthData,
+                           val user: UserEx,
+                           val payload: Payload,
+                           val charset: String)
+
+    /**
+     * Payload bytes, only first [size] bytes of [bytes] are meaningful
+     */
+    private class Payload(val bytes: ByteArray, val size: Int)
+
+    /**
+     * Reads whole stream into buffer presized according to 'Content-Length' (if known), passing each read chunk to [consumer]
+     */
+    private fun readPayload(input: InputStream, contentLength: Int, consumer: (ByteArray, Int, Int) -> Unit): Payload {
+        val limit = Math.min(MaxPayloadSize, Int.MAX_VALUE.toLong()).toInt()
+        var buffer = ByteArray(if (contentLength in 1..limit) contentLength else 8 * 1024)
+        var size = 0
+        while (true) {
+            if (size == buffer.size) {
+                if (size >= limit) break
+                buffer = buffer.copyOf(Math.min(Math.max(size * 2L, 8 * 1024L), limit.toLong()).toInt())
+            }
+            val read = input.read(buffer, size, buffer.size - size)
+            if (read == -1) break
+            consumer(buffer, size, read)
+            size += read
+        }
+        return Payload(buffer, size)
+    }
+
+    private fun processQueuedDelivery(delivery: Delivery) {
+        processQueued(delivery) { processDelivery(delivery) }
+    }
+
+    /**
+     * Runs [action] processing [delivery] asynchronously. If it fails, delivery id is forgotten so GitHub redelivery would be processed
+     */
+    private fun processQueued(delivery: Delivery, action: () -> Pair<Int, String>?) {
+        var completed = false
+        try {
+            logResult(delivery, action())
+            completed = true
+        } finally {
+            if (!completed) delivery.deliveryId?.let { myRecentDeliveries.forget(it) }
         }
+    }
 
-        val contentReader = BufferedReader(InputStreamReader(ByteArrayInputStream(content), request.characterEncoding ?: "UTF-8"))
+    private fun logResult(delivery: Delivery, pair: Pair<Int, String>?) {
+        if (pair == null) return
+        LOG.debug("Processed '${delivery.eventType}' event for public key '${delivery.pubKey}': (${pair.first}) ${pair.second}")
+    }
+
+    private fun processDelivery(delivery: Delivery): Pair<Int, String>? {
+        val hookInfo = delivery.hookId?.let { WebHooksManager.getHookForHookId(delivery.authData, it) }
+                       ?: WebHooksManager.getHookForPubKey(delivery.authData)
+        if (hookInfo == null && delivery.eventType == "ping") {
+            // There's possibility that listener invoked prior to 'CreateWebHookAction' finishes storing it in WebHooksManager
+            // Seems it's ok to do that since we already checked that request presumable comes from GitHub
+            // Delivery is parked (without blocking any thread) until hook is stored or timeout passes
+            WebHooksManager.awaitHookForPubKey(delivery.authData, HookRegistrationTimeout).thenAccept { info ->
+                enqueue(delivery, "'${delivery.eventType}' event for public key '${delivery.pubKey}' (resumed)") { handleDelivery(delivery, info) }
+            }
+            return SC_ACCEPTED to "Webhook is not stored yet, '${delivery.eventType}' event would be processed once it's stored"
+        }
+        return handleDelivery(delivery, hookInfo)
+    }
+
+    private fun handleDelivery(delivery: Delivery, hookInfo: WebHookInfo?): Pair<Int, String>? {
+        val eventType = delivery.eventType
+        if (hookInfo == null) {
+            // Seems local cache was cleared or it's a organization hook
+            LOG.warn("No stored hook info found for public key '${delivery.pubKey}' and repository '${delivery.authData.repository}'")
+        }
+
+        val contentReader = BufferedReader(InputStreamReader(ByteArrayInputStream(delivery.payload.bytes, 0, delivery.payload.size), delivery.charset))
 
         try {
             when (eventType) {
                 "ping" -> {
                     val payload = GsonUtilsEx.fromJson(contentReader, PingWebHookPayload::class.java)
-                    val pair = doHandlePingEvent(payload, hookInfo, user)
-                    return pair?.let { simpleText(response, pair.first, pair.second) }
+                    return doHandlePingEvent(payload, hookInfo, delivery.user)
                 }
                 "push" -> {
-                    val payload = GsonUtilsEx.fromJson(contentReader, PushWebHookPayload::class.java)
-                    val pair = doHandlePushEvent(payload, hookInfo, user)
-                    return pair?.let { simpleText(response, pair.first, pair.second) }
+                    val payload = WebHookPayloadReader.readPushEvent(contentReader)
+                    return doHandlePushEvent(payload, hookInfo, delivery.user)
                 }
                 "pull_request" -> {
-                    val payload = GsonUtilsEx.fromJson(contentReader, PullRequestPayloadEx::class.java)
-                    val pair = doHandlePullRequestEvent(payload, hookInfo, user)
-                    return pair?.let { simpleText(response, pair.first, pair.second) }
+                    val payload = WebHookPayloadReader.readPullRequestEvent(contentReader)
+                    return doHandlePullRequestEvent(payload, hookInfo, delivery.user)
                 }
             }
         } catch(e: Exception) {
@@ -188,19 +395,9 @@ class GitHubWebHookListener(private val WebControllerManager: WebControllerManag
                 "Failed to process request (event type is '$eventType')"
             }
             LOG.warnAndDebugDetails(message, e)
-            return simpleText(response, SC_SERVICE_UNAVAILABLE, message + ": ${e.message}")
-        }
-        return null
-    }
-
-    private fun getHookInfoWithWaiting(authData: AuthDataStorage.AuthData, eventType: String?): WebHookInfo? {
-        // There's possibility that listener invoked prior to 'CreateWebHookAction' finishes storing it in WebHooksManager
-        // Seems it's ok to do that since we already checked that request presumable comes from GitHub
-        for (i in 1..10) {
-            val info = WebHooksManager.getHookForPubKey(authData)
-            if (info != null) return info
-            if (eventType != "ping") return null
-            ThreadUtil.sleep(TimeUnit.SECONDS.toMillis(1))
+            // Allow GitHub redelivery to be processed
+            delivery.deliveryId?.let { myRecentDeliveries.forget(it) }
+            return SC_SERVICE_UNAVAILABLE to message + ": ${e.message}"
         }
         return null
     }
@@ -216,22 +413,37 @@ class GitHubWebHookListener(private val WebControllerManager: WebControllerManag
         return scheduleChangesCollection(payload.repository, user)
     }
 
-    private fun doHandlePushEvent(payload: PushWebHookPayload, hookInfo: WebHookInfo?, user: UserEx): Pair<Int, String>? {
-        LOG.info("Received push payload from webhook for repo ${payload.repository?.owner?.login}/${payload.repository?.name}")
+    private fun doHandlePushEvent(payload: PushEventData, hookInfo: WebHookInfo?, user: UserEx): Pair<Int, String>? {
+        val repository = payload.repository
+        if (repository == null) {
+            val message = "'push' event payload has no repository specified"
+            LOG.warn(message)
+            return SC_BAD_REQUEST to message
+        }
+        LOG.info("Received push payload from webhook for repo ${repository.owner?.login}/${repository.name}")
+        val claims = ArrayList<RevisionClaim>()
         if (hookInfo != null) {
             updateLastUsed(hookInfo)
-            updateBranches(hookInfo, payload.ref, payload.after)
+            val ref = payload.ref
+            val after = payload.after
+            if (ref != null && after != null) {
+                val claim = claimRevision(hookInfo, ref, after)
+                if (claim == null && isSkipKnownRevisions()) {
+                    return skipKnownRevision(repository, "$ref at $after")
+                }
+                claim?.let { claims.add(it) }
+            }
         }
 
-        return scheduleChangesCollection(payload.repository, user)
+        return withClaims(hookInfo, claims) { scheduleChangesCollection(repository, user, payload.ref) }
     }
 
-    private fun doHandlePullRequestEvent(payload: PullRequestPayloadEx, hookInfo: WebHookInfo?, user: UserEx): Pair<Int, String>? {
+    private fun doHandlePullRequestEvent(payload: PullRequestEventData, hookInfo: WebHookInfo?, user: UserEx): Pair<Int, String>? {
         if (payload.action !in AcceptedPullRequestActions) {
             LOG.info("Ignoring 'pull_request' event with action '${payload.action}' as unrelated for repo $hookInfo")
             return SC_ACCEPTED to "Unrelated action, expected one of $AcceptedPullRequestActions"
         }
-        val repository = payload.pullRequest?.base?.repo
+        val repository = payload.baseRepository
         val url = repository?.htmlUrl
         if (url == null) {
             val message = "pull_request' event payload has no repository url specified in object path 'pull_request.base.repo.html_url'"
@@ -245,32 +457,55 @@ class GitHubWebHookListener(private val WebControllerManager: WebControllerManag
             LOG.warn(message)
             return SC_SERVICE_UNAVAILABLE to message
         }
+        val claims = ArrayList<RevisionClaim>()
         if (hookInfo != null) {
             updateLastUsed(hookInfo)
             val id = payload.number
-            updateBranches(hookInfo, "refs/pull/$id/head", payload.pullRequest.head.sha)
-
-            val mergeCommitSha = payload.pullRequest.mergeCommitSha
-            val mergeBranchName = "refs/pull/$id/merge"
-            if (!mergeCommitSha.isNullOrBlank()) {
-                updateBranches(hookInfo, mergeBranchName, mergeCommitSha)
-            } else if (hookInfo.lastBranchRevisions?.get(mergeBranchName).isNullOrEmpty()) {
-                // Firstly discovered merge branch, probably PR is just created.
-                // Lets wait for branch to appear in background (using REST API polling)
-                // then notify git subsystem to schedule checking for changes (using mock rest request)
-                PullRequestMergeBranchChecker.schedule(info, hookInfo, user, id)
+            if (payload.action == "closed") {
+                // Branches of closed PR would disappear, there's no need to remember their revisions.
+                // Closed PR is always checked
+                WebHooksManager.removePullRequestBranches(hookInfo, id.toLong())
+            } else {
+                val headSha = payload.headSha
+                val headBranchName = "refs/pull/$id/head"
+                val headClaim = headSha?.let { claimRevision(hookInfo, headBranchName, it) }
+                headClaim?.let { claims.add(it) }
+
+                val mergeCommitSha = payload.mergeCommitSha
+                val mergeBranchName = "refs/pull/$id/merge"
+                if (!mergeCommitSha.isNullOrBlank()) {
+                    // Not yet computed merge commit is always checked
+                    val mergeClaim = claimRevision(hookInfo, mergeBranchName, mergeCommitSha)
+                    if (headSha != null && headClaim == null && mergeClaim == null && isSkipKnownRevisions()) {
+                        return skipKnownRevision(repository, "pull request #$id at $headSha")
+                    }
+                    mergeClaim?.let { claims.add(it) }
+                } else if (hookInfo.getBranchRevision(mergeBranchName).isNullOrEmpty()) {
+                    // Firstly discovered merge branch, probably PR is just created.
+                    // Lets wait for branch to appear in background (using REST API polling)
+                    // then notify git subsystem to schedule checking for changes (using mock rest request)
+                    PullRequestMergeBranchChecker.schedule(info, hookInfo, user, id)
+                }
             }
         }
-        return scheduleChangesCollection(repository, user)
+        return withClaims(hookInfo, claims) { scheduleChangesCollection(repository, user) }
     }
 
-    private fun scheduleChangesCollection(repository: Repository, user: UserEx): Pair<Int, String>? {
+    /**
+     * @param ref pushed ref, if specified checking for changes is scheduled only for VCS root instances which branch specification could match it
+     */
+    private fun scheduleChangesCollection(repository: Repository, user: UserEx, ref: String? = null): Pair<Int, String>? {
         return SecurityContext.runAs<Pair<Int, String>>(user) {
-            val vcsRoots = webhooksHelper.findRelevantVcsRootInstances(repository)
-            if (vcsRoots.isEmpty())
+            val relevantVcsRoots = webhooksHelper.findRelevantVcsRootInstances(repository)
+            val vcsRoots = if (ref == null || !TeamCityProperties.getBooleanOrTrue(FilterByBranchSpecProperty)) relevantVcsRoots
+                           else relevantVcsRoots.filter { BranchSpecMatcher.isMonitored(it, ref) }
+            if (relevantVcsRoots.isEmpty())
                 SC_OK to "No relevant VCS roots found"
-            else {
-                webhooksHelper.checkForChanges(vcsRoots)
+            else if (vcsRoots.isEmpty()) {
+                LOG.debug("None of ${relevantVcsRoots.size} relevant VCS root ${relevantVcsRoots.size.pluralize("instance")} monitors '$ref', checking for changes skipped")
+                SC_OK to "No relevant VCS roots monitor '$ref'"
+            } else {
+                webhooksHelper.scheduleCheckForChanges(getRepoKey(repository), user, vcsRoots)
                 val vcsRootIdSet = vcsRoots.map { it.parent.externalId }.toSet()
                 val vcsRootIds = vcsRootIdSet.joinToString("\n")
 
@@ -281,12 +516,56 @@ class GitHubWebHookListener(private val WebControllerManager: WebControllerManag
         }
     }
 
+    private fun getRepoKey(repository: Repository): RepoKey? {
+        val info = (repository.htmlUrl ?: repository.cloneUrl)?.let { Util.getGitHubInfo(it) } ?: return null
+        return info.toRepoKey()
+    }
+
     private fun updateLastUsed(hookInfo: WebHookInfo) {
         WebHooksManager.updateLastUsed(hookInfo, Date())
     }
 
-    private fun updateBranches(hookInfo: WebHookInfo, branch: String, commitSha: String) {
-        WebHooksManager.updateBranchRevisions(hookInfo, mapOf(branch to commitSha))
+    /**
+     * Revision of the branch stored by delivery before checking for changes is scheduled
+     */
+    private class RevisionClaim(val branch: String, val revision: String, val previous: String?)
+
+    /**
+     * Atomically stores [commitSha] as revision of [branch], so concurrent delivery of the same revision is skipped as already known
+     * @return null if revision is already known
+     */
+    private fun claimRevision(hookInfo: WebHookInfo, branch: String, commitSha: String): RevisionClaim? {
+        while (true) {
+            val previous = hookInfo.getBranchRevision(branch)
+            if (previous == commitSha) return null
+            if (WebHooksManager.compareAndSetBranchRevision(hookInfo, branch, previous, commitSha)) return RevisionClaim(branch, commitSha, previous)
+        }
+    }
+
+    /**
+     * Rolls back [claims] if scheduling checking for changes fails,
+     * so redelivery of payload which failed to be processed is not skipped as already known
+     */
+    private fun withClaims(hookInfo: WebHookInfo?, claims: List<RevisionClaim>, schedule: () -> Pair<Int, String>?): Pair<Int, String>? {
+        var failed = true
+        try {
+            val result = schedule()
+            failed = result != null && result.first >= 500
+            return result
+        } finally {
+            if (failed && hookInfo != null) {
+                // Revision could be already replaced by newer delivery, it's kept then
+                claims.forEach { WebHooksManager.compareAndSetBranchRevision(hookInfo, it.branch, it.revision, it.previous) }
+            }
+        }
+    }
+
+    private fun isSkipKnownRevisions() = TeamCityProperties.getBooleanOrTrue(SkipKnownRevisionsProperty)
+
+    private fun skipKnownRevision(repository: Repository, what: String): Pair<Int, String> {
+        mySkippedKnownRevisions.incrementAndGet()
+        LOG.info("Revision of $what in repo ${repository.owner?.login}/${repository.name} is already known, checking for changes skipped")
+        return SC_OK to "Revision is already known, checking for changes skipped"
     }
 }
 
@@ -2,30 +2,107 @@
 
 package org.jetbrains.teamcity.github.controllers
 
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import org.apache.commons.codec.DecoderException
 import org.apache.commons.codec.binary.Hex
-import org.jetbrains.teamcity.github.Util
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 import javax.crypto.Mac
 import javax.crypto.spec.SecretKeySpec
 
 class HMacUtil {
     companion object {
-        private val LOG = Util.getLogger(HMacUtil::class.java)
         const val HMAC_Algorithm = "HmacSHA1"
+        const val HMAC_SHA256_Algorithm = "HmacSHA256"
 
-        fun checkHMac(message: ByteArray, key: ByteArray, expected: String): Boolean {
-            val hmac = calculateHMac(message, key)
-            if (hmac != expected) {
-                LOG.warn("Digest mismatch. From header: '$expected' Content digest-hmac: $hmac")
+        private const val MAX_POOLED_PER_KEY = 8
+
+        // Pre-keyed Mac instances, so there's no crypto provider lookup and key initialization per delivery
+        private val ourMacPools: Cache<Pair<String, String>, MacPool> = CacheBuilder.newBuilder()
+                .maximumSize(TeamCityProperties.getLong("teamcity.githubWebhooks.hmac.cacheSize", 10000))
+                .expireAfterAccess(30, TimeUnit.MINUTES)
+                .build()
+
+        /**
+         * Parses 'X-Hub-Signature' ('sha1=...') or 'X-Hub-Signature-256' ('sha256=...') header value
+         * @return null if format is not recognized
+         */
+        fun parseSignature(header: String): Signature? {
+            val algorithm = when {
+                header.startsWith("sha1=") -> HMAC_Algorithm
+                header.startsWith("sha256=") -> HMAC_SHA256_Algorithm
+                else -> return null
+            }
+            return try {
+                Signature(algorithm, Hex.decodeHex(header.substringAfter('=').toCharArray()))
+            } catch (e: DecoderException) {
+                null
+            }
+        }
+
+        /**
+         * Runs [action] with pooled Mac instance initialized with [secret] using [algorithm].
+         * Mac is reset and returned to the pool afterwards, so [action] should not keep reference to it.
+         */
+        fun <T> withMac(keyId: String, secret: String, algorithm: String, action: (Mac) -> T): T {
+            val cacheKey = keyId to algorithm
+            var pool = ourMacPools.get(cacheKey) { MacPool(secret, algorithm) }
+            if (pool.secret != secret) {
+                pool = MacPool(secret, algorithm)
+                ourMacPools.put(cacheKey, pool)
+            }
+            val mac = pool.borrow()
+            try {
+                return action(mac)
+            } finally {
+                pool.release(mac)
+            }
+        }
+
+        fun invalidate(keyId: String) {
+            ourMacPools.invalidate(keyId to HMAC_Algorithm)
+            ourMacPools.invalidate(keyId to HMAC_SHA256_Algorithm)
+        }
+    }
+
+    class Signature(val algorithm: String, private val digest: ByteArray) {
+        /**
+         * Constant-time comparison with calculated digest
+         */
+        fun matches(calculated: ByteArray): Boolean = MessageDigest.isEqual(digest, calculated)
+
+        override fun toString(): String {
+            return (if (algorithm == HMAC_Algorithm) "sha1=" else "sha256=") + String(Hex.encodeHex(digest))
+        }
+    }
+
+    private class MacPool(val secret: String, private val algorithm: String) {
+        private val myPool = ConcurrentLinkedQueue<Mac>()
+        private val mySize = AtomicInteger()
+
+        fun borrow(): Mac {
+            val mac = myPool.poll() ?: return create()
+            mySize.decrementAndGet()
+            return mac
+        }
+
+        fun release(mac: Mac) {
+            mac.reset()
+            if (mySize.incrementAndGet() <= MAX_POOLED_PER_KEY) {
+                myPool.offer(mac)
+            } else {
+                mySize.decrementAndGet()
             }
-            return hmac == expected
         }
 
-        fun calculateHMac(message: ByteArray, key: ByteArray): String {
-            val mac = Mac.getInstance(HMAC_Algorithm)
-            mac.init(SecretKeySpec(key, HMAC_Algorithm))
-            mac.update(message)
-            val digest = mac.doFinal()
-            return "sha1=" + String(Hex.encodeHex(digest))
+        private fun create(): Mac {
+            val mac = Mac.getInstance(algorithm)
+            mac.init(SecretKeySpec(secret.toByteArray(Charsets.UTF_8), algorithm))
+            return mac
         }
     }
-}
\ No newline at end of file
+}
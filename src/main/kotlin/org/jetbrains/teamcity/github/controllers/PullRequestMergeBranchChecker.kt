@@ -5,7 +5,6 @@ package org.jetbrains.teamcity.github.controllers
 import jetbrains.buildServer.serverSide.ProjectManager
 import jetbrains.buildServer.serverSide.executors.ExecutorServices
 import jetbrains.buildServer.serverSide.oauth.OAuthConnectionsManager
-import jetbrains.buildServer.serverSide.oauth.github.GitHubClientFactory
 import jetbrains.buildServer.serverSide.oauth.github.GitHubConstants
 import jetbrains.buildServer.users.impl.UserEx
 import org.jetbrains.teamcity.github.*
@@ -24,7 +23,8 @@ class PullRequestMergeBranchChecker(
         private val myWebHooksManager: WebHooksManager,
         ExecutorServices: ExecutorServices,
         private val RestApiFacade: RestApiFacade,
-        private val myTokensHelper: TokensHelper
+        private val myTokensHelper: TokensHelper,
+        private val myClientPool: GitHubClientPool
 ) {
     companion object {
         private val DELAYS = arrayOf<Long>(10, 10, 10, 30, 60, 60, 60, 60) // Total 300 seconds
@@ -95,7 +95,7 @@ class PullRequestMergeBranchChecker(
          * @return whether to retry later
          */
         private fun doCheck(): Boolean {
-            val pubKey = GitHubWebHookListener.getPubKeyFromRequestPath(hook.callbackUrl)
+            val pubKey = hook.pubKey
             if (pubKey == null || pubKey.isBlank()) {
                 // Old hook format
                 LOG.warn("Callback url (${hook.callbackUrl}) of hook '${hook.url}' does not contains security check public key")
@@ -126,10 +126,10 @@ class PullRequestMergeBranchChecker(
                 return false
             }
 
-            val ghc = GitHubClientFactory.createGitHubClient(connection.parameters[GitHubConstants.GITHUB_URL_PARAM]!!)
+            val serverUrl = connection.parameters[GitHubConstants.GITHUB_URL_PARAM]!!
 
             tokens@ for (token in tokens) {
-                ghc.setOAuth2Token(token.accessToken)
+                val ghc = myClientPool.getClient(serverUrl, token.accessToken)
                 try {
                     val pr = GetPullRequestDetailsAction.doRun(info, ghc, myWebHooksManager, prNumber)
                     val sha = pr.mergeCommitSha
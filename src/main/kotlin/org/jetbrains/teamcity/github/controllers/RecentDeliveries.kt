@@ -0,0 +1,44 @@
+package org.jetbrains.teamcity.github.controllers
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Memory-capped, time-windowed set of recently accepted deliveries ids ('X-GitHub-Delivery' header).
+ *
+ * GitHub keeps delivery id when payload is redelivered (on timeout or via 'Redeliver' button),
+ * so such duplicates could be acknowledged without scheduling checking for changes once again.
+ */
+class RecentDeliveries(maxSize: Long, window: Long, unit: TimeUnit) {
+    private val mySeen: Cache<String, Boolean> = CacheBuilder.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfterWrite(window, unit)
+            .build()
+    private val mySuppressed = AtomicLong()
+
+    /**
+     * @return true if delivery with given id was not seen recently, false if it's a duplicate
+     */
+    fun markSeen(deliveryId: String): Boolean {
+        val first = mySeen.asMap().putIfAbsent(deliveryId, true) == null
+        if (!first) {
+            mySuppressed.incrementAndGet()
+        }
+        return first
+    }
+
+    /**
+     * Should be called if delivery processing failed, so redelivery would be processed
+     */
+    fun forget(deliveryId: String) {
+        mySeen.invalidate(deliveryId)
+    }
+
+    val suppressed: Long
+        get() = mySuppressed.get()
+
+    val size: Long
+        get() = mySeen.size()
+}
@@ -0,0 +1,150 @@
+package org.jetbrains.teamcity.github.controllers
+
+import jetbrains.buildServer.serverSide.BuildServerAdapter
+import jetbrains.buildServer.serverSide.BuildServerListener
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import jetbrains.buildServer.util.EventDispatcher
+import org.jetbrains.teamcity.github.Util
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.max
+
+/**
+ * Bounded in-memory queue of verified webhook deliveries processed by a dedicated worker pool.
+ *
+ * Allows [GitHubWebHookListener] to answer GitHub right after payload signature verification
+ * instead of holding servlet thread until checking for changes is scheduled.
+ *
+ * When queue is full deliveries are rejected, so that caller could shed load instead of processing them on servlet thread.
+ * Queue is disabled if 'teamcity.githubWebhooks.deliveryQueue.threads' is 0, deliveries are processed on servlet thread then.
+ *
+ * Queue is drained on server shutdown, waiting at most 'teamcity.githubWebhooks.deliveryQueue.shutdownTimeout.sec' seconds.
+ */
+class WebHookDeliveryQueue(private val myServerEventDispatcher: EventDispatcher<BuildServerListener>) {
+
+    companion object {
+        private val LOG = Util.getLogger(WebHookDeliveryQueue::class.java)
+
+        const val CAPACITY_PROPERTY = "teamcity.githubWebhooks.deliveryQueue.capacity"
+        const val THREADS_PROPERTY = "teamcity.githubWebhooks.deliveryQueue.threads"
+        const val SHUTDOWN_TIMEOUT_PROPERTY = "teamcity.githubWebhooks.deliveryQueue.shutdownTimeout.sec"
+    }
+
+    data class Statistics(val depth: Int,
+                          val capacity: Int,
+                          val accepted: Long,
+                          val rejected: Long,
+                          val processed: Long,
+                          val failed: Long,
+                          val averageWaitMs: Long,
+                          val maxWaitMs: Long)
+
+    private val myCapacity = max(1, TeamCityProperties.getInteger(CAPACITY_PROPERTY, 1000))
+    private val myThreads = TeamCityProperties.getInteger(THREADS_PROPERTY, 4)
+    private val myQueue = LinkedBlockingQueue<Runnable>(myCapacity)
+    private val myThreadsCounter = AtomicInteger()
+    private val myExecutor: ThreadPoolExecutor
+
+    private val myAccepted = AtomicLong()
+    private val myRejected = AtomicLong()
+    private val myProcessed = AtomicLong()
+    private val myFailed = AtomicLong()
+    private val myTotalWaitNanos = AtomicLong()
+    private val myMaxWaitNanos = AtomicLong()
+
+    init {
+        val threads = max(1, myThreads)
+        myExecutor = ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, myQueue, ThreadFactory { runnable ->
+            val thread = Thread(runnable, "GitHub Webhooks Delivery " + myThreadsCounter.incrementAndGet())
+            thread.isDaemon = true
+            thread
+        })
+        myExecutor.allowCoreThreadTimeOut(true)
+    }
+
+    private val myServerListener = object : BuildServerAdapter() {
+        override fun serverShutdown() {
+            drain()
+        }
+    }
+
+    fun init() {
+        myServerEventDispatcher.addListener(myServerListener)
+    }
+
+    fun destroy() {
+        myServerEventDispatcher.removeListener(myServerListener)
+        myExecutor.shutdownNow()
+    }
+
+    /**
+     * Whether deliveries are processed by worker pool, otherwise caller should process them by itself
+     */
+    val isEnabled: Boolean
+        get() = myThreads > 0
+
+    /**
+     * @return false if queue is disabled, full or already stopped, delivery is not processed then
+     */
+    fun offer(description: String, task: () -> Unit): Boolean {
+        if (!isEnabled || myExecutor.isShutdown) return false
+        val enqueued = System.nanoTime()
+        try {
+            myExecutor.execute { process(description, enqueued, task) }
+        } catch (e: RejectedExecutionException) {
+            val rejected = myRejected.incrementAndGet()
+            if (rejected == 1L || rejected % 100 == 0L) {
+                LOG.warn("Webhook deliveries queue is full, $description rejected. Rejected so far: $rejected, ${getStatistics()}")
+            } else {
+                LOG.debug("Webhook deliveries queue is full, $description rejected")
+            }
+            return false
+        }
+        myAccepted.incrementAndGet()
+        return true
+    }
+
+    fun getStatistics(): Statistics {
+        val processed = myProcessed.get()
+        return Statistics(depth = myQueue.size,
+                          capacity = myCapacity,
+                          accepted = myAccepted.get(),
+                          rejected = myRejected.get(),
+                          processed = processed,
+                          failed = myFailed.get(),
+                          averageWaitMs = if (processed == 0L) 0 else TimeUnit.NANOSECONDS.toMillis(myTotalWaitNanos.get() / processed),
+                          maxWaitMs = TimeUnit.NANOSECONDS.toMillis(myMaxWaitNanos.get()))
+    }
+
+    private fun process(description: String, enqueued: Long, task: () -> Unit) {
+        val wait = System.nanoTime() - enqueued
+        myTotalWaitNanos.addAndGet(wait)
+        myMaxWaitNanos.accumulateAndGet(wait) { a, b -> max(a, b) }
+        LOG.debug("Processing $description, waited in queue ${TimeUnit.NANOSECONDS.toMillis(wait)} ms, queue depth is ${myQueue.size}")
+        try {
+            task()
+        } catch (e: Throwable) {
+            myFailed.incrementAndGet()
+            LOG.warnAndDebugDetails("Failed to process $description", e)
+        } finally {
+            myProcessed.incrementAndGet()
+        }
+    }
+
+    private fun drain() {
+        val timeout = TeamCityProperties.getLong(SHUTDOWN_TIMEOUT_PROPERTY, 30)
+        LOG.info("Stopping webhook deliveries processing, ${myQueue.size} deliveries left in queue")
+        myExecutor.shutdown()
+        try {
+            if (!myExecutor.awaitTermination(timeout, TimeUnit.SECONDS)) {
+                val dropped = myExecutor.shutdownNow()
+                LOG.warn("Webhook deliveries were not processed in $timeout seconds, ${dropped.size} deliveries dropped")
+            }
+        } catch (e: InterruptedException) {
+            myExecutor.shutdownNow()
+            Thread.currentThread().interrupt()
+        }
+        LOG.info("Webhook deliveries processing stopped: ${getStatistics()}")
+    }
+}
@@ -19,7 +19,6 @@ import jetbrains.buildServer.serverSide.oauth.OAuthConnectionsManager
 import jetbrains.buildServer.serverSide.oauth.OAuthToken
 import jetbrains.buildServer.serverSide.oauth.OAuthTokensStorage
 import jetbrains.buildServer.serverSide.oauth.github.GitHubClientEx
-import jetbrains.buildServer.serverSide.oauth.github.GitHubClientFactory
 import jetbrains.buildServer.serverSide.oauth.github.GitHubConstants
 import jetbrains.buildServer.users.SUser
 import jetbrains.buildServer.util.PropertiesUtil
@@ -50,6 +49,7 @@ class WebHooksController(descriptor: PluginDescriptor,
                          val myWebHooksManager: WebHooksManager,
                          val myTokensHelper: TokensHelper,
                          val myProjectManager: ProjectManager,
+                         val myClientPool: GitHubClientPool,
                          server: SBuildServer) : BaseController(server) {
 
 
@@ -209,10 +209,10 @@ class WebHooksController(descriptor: PluginDescriptor,
             }
 
             for ((key, value) in tokens) {
-                val ghc: GitHubClientEx = GitHubClientFactory.createGitHubClient(key.parameters[GitHubConstants.GITHUB_URL_PARAM]!!)
+                val serverUrl = key.parameters[GitHubConstants.GITHUB_URL_PARAM]!!
                 for (token in value) {
                     LOG.info("Trying with token: ${token.oauthLogin}, connector is ${key.id}")
-                    ghc.setOAuth2Token(token.accessToken)
+                    val ghc: GitHubClientEx = myClientPool.getClient(serverUrl, token.accessToken)
                     var element: JsonElement?
 
                     try {
@@ -340,6 +340,7 @@ class WebHooksController(descriptor: PluginDescriptor,
             GitHubAccessException.Type.InvalidCredentials -> {
                 LOG.warn("Removing incorrect (outdated) token (user:${token.oauthLogin}, scope:${token.scope})")
                 myOAuthTokensStorage.removeToken(connection.tokenStorageId, token)
+                myClientPool.invalidate(token.accessToken)
             }
             GitHubAccessException.Type.TokenScopeMismatch -> {
                 LOG.warn("Token (user:${token.oauthLogin}, scope:${token.scope}) have not enough scope")
@@ -439,10 +440,10 @@ class WebHooksController(descriptor: PluginDescriptor,
                 val elements = ArrayList<JsonElement>()
                 @Suppress("NAME_SHADOWING")
                 for ((connection, tokens) in connectionToTokensMap) {
-                    val ghc: GitHubClientEx = GitHubClientFactory.createGitHubClient(connection.parameters[GitHubConstants.GITHUB_URL_PARAM]!!)
+                    val serverUrl = connection.parameters[GitHubConstants.GITHUB_URL_PARAM]!!
                     for (token in tokens) {
                         LOG.info("Trying with token: ${token.oauthLogin}, connector is ${connection.id}")
-                        ghc.setOAuth2Token(token.accessToken)
+                        val ghc: GitHubClientEx = myClientPool.getClient(serverUrl, token.accessToken)
                         try {
                             elements.add(doCheckWebHook(ghc, info))
                         } catch(e: GitHubAccessException) {
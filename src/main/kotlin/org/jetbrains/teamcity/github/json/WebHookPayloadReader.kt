@@ -0,0 +1,169 @@
+package org.jetbrains.teamcity.github.json
+
+import com.google.gson.JsonSyntaxException
+import com.google.gson.stream.JsonReader
+import com.google.gson.stream.JsonToken
+import org.eclipse.egit.github.core.Repository
+import org.eclipse.egit.github.core.User
+import java.io.IOException
+import java.io.Reader
+
+/**
+ * Fields of 'push' event payload used by GitHubWebHookListener
+ */
+class PushEventData(val ref: String?,
+                    val after: String?,
+                    val repository: Repository?)
+
+/**
+ * Fields of 'pull_request' event payload used by GitHubWebHookListener
+ */
+class PullRequestEventData(val action: String?,
+                           val number: Int,
+                           val headSha: String?,
+                           val mergeCommitSha: String?,
+                           val baseRepository: Repository?)
+
+/**
+ * Streaming reader of webhook payloads which extracts only necessary fields
+ * and skips everything else (commits, authors, nested users and repositories) without materializing it.
+ *
+ * Repositories are returned as [Repository] with only urls, name and owner login set.
+ */
+object WebHookPayloadReader {
+
+    @Throws(JsonSyntaxException::class)
+    fun readPushEvent(input: Reader): PushEventData {
+        return read(input) { reader ->
+            var ref: String? = null
+            var after: String? = null
+            var repository: Repository? = null
+            reader.beginObject()
+            while (reader.hasNext()) {
+                when (reader.nextName()) {
+                    "ref" -> ref = nextStringOrNull(reader)
+                    "after" -> after = nextStringOrNull(reader)
+                    "repository" -> repository = readRepository(reader)
+                    else -> reader.skipValue()
+                }
+            }
+            reader.endObject()
+            PushEventData(ref, after, repository)
+        }
+    }
+
+    @Throws(JsonSyntaxException::class)
+    fun readPullRequestEvent(input: Reader): PullRequestEventData {
+        return read(input) { reader ->
+            var action: String? = null
+            var number = 0
+            var headSha: String? = null
+            var mergeCommitSha: String? = null
+            var baseRepository: Repository? = null
+            reader.beginObject()
+            while (reader.hasNext()) {
+                when (reader.nextName()) {
+                    "action" -> action = nextStringOrNull(reader)
+                    "number" -> number = nextStringOrNull(reader)?.toInt() ?: 0
+                    "pull_request" -> {
+                        if (!beginObjectOrSkip(reader)) continue
+                        while (reader.hasNext()) {
+                            when (reader.nextName()) {
+                                "merge_commit_sha" -> mergeCommitSha = nextStringOrNull(reader)
+                                "head" -> {
+                                    if (!beginObjectOrSkip(reader)) continue
+                                    while (reader.hasNext()) {
+                                        if (reader.nextName() == "sha") headSha = nextStringOrNull(reader) else reader.skipValue()
+                                    }
+                                    reader.endObject()
+                                }
+                                "base" -> {
+                                    if (!beginObjectOrSkip(reader)) continue
+                                    while (reader.hasNext()) {
+                                        if (reader.nextName() == "repo") baseRepository = readRepository(reader) else reader.skipValue()
+                                    }
+                                    reader.endObject()
+                                }
+                                else -> reader.skipValue()
+                            }
+                        }
+                        reader.endObject()
+                    }
+                    else -> reader.skipValue()
+                }
+            }
+            reader.endObject()
+            PullRequestEventData(action, number, headSha, mergeCommitSha, baseRepository)
+        }
+    }
+
+    private fun <T> read(input: Reader, action: (JsonReader) -> T): T {
+        val reader = JsonReader(input)
+        reader.isLenient = true
+        try {
+            return action(reader)
+        } catch (e: IOException) {
+            throw JsonSyntaxException(e)
+        } catch (e: IllegalStateException) {
+            throw JsonSyntaxException(e)
+        } catch (e: NumberFormatException) {
+            throw JsonSyntaxException(e)
+        }
+    }
+
+    private fun readRepository(reader: JsonReader): Repository? {
+        if (!beginObjectOrSkip(reader)) return null
+        val repository = Repository()
+        while (reader.hasNext()) {
+            when (reader.nextName()) {
+                "name" -> repository.setName(nextStringOrNull(reader))
+                "html_url" -> repository.setHtmlUrl(nextStringOrNull(reader))
+                "clone_url" -> repository.setCloneUrl(nextStringOrNull(reader))
+                "git_url" -> repository.setGitUrl(nextStringOrNull(reader))
+                "ssh_url" -> repository.setSshUrl(nextStringOrNull(reader))
+                "owner" -> repository.setOwner(readOwner(reader))
+                else -> reader.skipValue()
+            }
+        }
+        reader.endObject()
+        return repository
+    }
+
+    private fun readOwner(reader: JsonReader): User? {
+        if (!beginObjectOrSkip(reader)) return null
+        var login: String? = null
+        var name: String? = null
+        while (reader.hasNext()) {
+            when (reader.nextName()) {
+                "login" -> login = nextStringOrNull(reader)
+                "name" -> name = nextStringOrNull(reader)
+                else -> reader.skipValue()
+            }
+        }
+        reader.endObject()
+        // Older 'push' payloads have only 'name' in repository owner object
+        return User().setLogin(login ?: name)
+    }
+
+    /**
+     * @return true if object began, false if value was null or not an object and was skipped
+     */
+    private fun beginObjectOrSkip(reader: JsonReader): Boolean {
+        if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+            reader.beginObject()
+            return true
+        }
+        reader.skipValue()
+        return false
+    }
+
+    private fun nextStringOrNull(reader: JsonReader): String? {
+        return when (reader.peek()) {
+            JsonToken.STRING, JsonToken.NUMBER -> reader.nextString()
+            else -> {
+                reader.skipValue()
+                null
+            }
+        }
+    }
+}
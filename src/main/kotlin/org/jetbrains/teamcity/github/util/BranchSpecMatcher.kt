@@ -0,0 +1,67 @@
+package org.jetbrains.teamcity.github.util
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import jetbrains.buildServer.vcs.VcsRootInstance
+
+/**
+ * Checks whether pushed ref could be seen by git VCS root instance: ref is either default branch or matches
+ * one of include rules of 'teamcity:branchSpec'.
+ *
+ * Evaluation is conservative: exclude rules are ignored and anything unresolved (parameter references) matches,
+ * so roots are never skipped by mistake, only obviously unrelated refs are filtered out.
+ */
+object BranchSpecMatcher {
+    const val DEFAULT_BRANCH_PROPERTY = "branch"
+    const val BRANCH_SPEC_PROPERTY = "teamcity:branchSpec"
+
+    private const val DEFAULT_BRANCH_PLACEHOLDER = "<default>"
+
+    private val ourCompiled: Cache<Pair<String, String>, CompiledSpec> = CacheBuilder.newBuilder()
+            .maximumSize(TeamCityProperties.getLong("teamcity.githubWebhooks.branchSpecCache.size", 1000))
+            .build()
+
+    fun isMonitored(root: VcsRootInstance, ref: String): Boolean {
+        return matches(root.getProperty(DEFAULT_BRANCH_PROPERTY), root.getProperty(BRANCH_SPEC_PROPERTY), ref)
+    }
+
+    fun matches(defaultBranch: String?, branchSpec: String?, ref: String): Boolean {
+        if (defaultBranch.isNullOrBlank()) return true
+        val key = defaultBranch.trim() to (branchSpec ?: "").trim()
+        return ourCompiled.get(key) { compile(key.first, key.second) }.matches(ref)
+    }
+
+    private fun compile(defaultBranch: String, branchSpec: String): CompiledSpec {
+        val default = toRef(defaultBranch)
+        if (default.contains('%')) return CompiledSpec.ANY
+        val patterns = ArrayList<Regex>()
+        for (line in branchSpec.lines()) {
+            val rule = line.trim()
+            if (rule.isEmpty() || rule.startsWith("-:")) continue
+            val pattern = rule.removePrefix("+:").trim().replace("(", "").replace(")", "")
+            if (pattern.isEmpty()) continue
+            if (pattern.contains('%')) return CompiledSpec.ANY
+            if (pattern == DEFAULT_BRANCH_PLACEHOLDER) continue
+            patterns.add(toRegex(toRef(pattern)))
+        }
+        return CompiledSpec(default, patterns)
+    }
+
+    private fun toRef(branch: String): String = if (branch.startsWith("refs/")) branch else "refs/heads/$branch"
+
+    private fun toRegex(pattern: String): Regex {
+        return Regex(pattern.split('*').joinToString(".*") { Regex.escape(it) })
+    }
+
+    private class CompiledSpec(private val defaultRef: String?, private val patterns: List<Regex>) {
+        fun matches(ref: String): Boolean {
+            if (defaultRef == null) return true
+            return ref == defaultRef || patterns.any { it.matches(ref) }
+        }
+
+        companion object {
+            val ANY = CompiledSpec(null, emptyList())
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.jetbrains.teamcity.github.util
+
+import org.jetbrains.teamcity.github.Util
+import org.jetbrains.teamcity.github.pluralize
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Coalesces checking for changes requests with same key:
+ * requests are collected until there's no new ones in 'window' ms,
+ * then [myCheck] is called once for union of all requested roots.
+ * First request is never delayed more than 'maxDelay' ms.
+ */
+internal class ChangesCheckCoalescer<K : Any, R>(private val myScheduler: ScheduledExecutorService,
+                                                  private val myCheck: (K, Collection<R>) -> Unit) {
+    companion object {
+        private val LOG = Util.getLogger(ChangesCheckCoalescer::class.java)
+    }
+
+    private val myPendingChecks = ConcurrentHashMap<K, PendingCheck>()
+
+    fun schedule(key: K, roots: Collection<R>, window: Long, maxDelay: Long) {
+        val maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelay)
+        while (true) {
+            val pending = myPendingChecks.computeIfAbsent(key) { PendingCheck(it) }
+            val added = synchronized(pending) {
+                if (pending.flushed) {
+                    // Just being flushed, new one should be created
+                    false
+                } else {
+                    pending.roots.addAll(roots)
+                    pending.requests++
+                    val delay = Math.max(0, Math.min(TimeUnit.MILLISECONDS.toNanos(window), pending.created + maxDelayNanos - System.nanoTime()))
+                    pending.future?.cancel(false)
+                    pending.future = myScheduler.schedule(pending, delay, TimeUnit.NANOSECONDS)
+                    true
+                }
+            }
+            if (added) return
+        }
+    }
+
+    private inner class PendingCheck(private val key: K) : Runnable {
+        val created = System.nanoTime()
+        val roots = LinkedHashSet<R>()
+        var requests = 0
+        var future: ScheduledFuture<*>? = null
+        var flushed = false
+
+        override fun run() {
+            val toCheck = synchronized(this) {
+                if (flushed) return
+                flushed = true
+                myPendingChecks.remove(key, this)
+                ArrayList(roots)
+            }
+            LOG.debug("Checking for changes in ${toCheck.size} VCS root ${toCheck.size.pluralize("instance")} of repository $key, coalesced $requests ${requests.pluralize("request")}")
+            try {
+                myCheck(key, toCheck)
+            } catch (e: Exception) {
+                LOG.warnAndDebugDetails("Failed to schedule checking for changes for repository $key", e)
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package org.jetbrains.teamcity.github.util
+
+import jetbrains.buildServer.util.FileUtil
+import java.io.*
+import java.nio.channels.FileChannel
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * Streaming writer of compact binary snapshots used by plugin storages.
+ *
+ * Numbers are written as variable-length integers.
+ * Strings written via [writeShared] are placed into a string table on first occurrence
+ * and referenced by index afterwards, which is useful for repeated values like server, owner or callback url prefix.
+ */
+internal class SnapshotOutput(output: OutputStream) : Closeable {
+    private val myOut = DataOutputStream(BufferedOutputStream(output, 64 * 1024))
+    private val myStrings = HashMap<String, Int>()
+
+    fun writeHeader(magic: Int, version: Int) {
+        myOut.writeInt(magic)
+        writeInt(version)
+    }
+
+    fun writeByte(value: Int) {
+        myOut.writeByte(value)
+    }
+
+    fun writeInt(value: Int) {
+        writeLong(value.toLong() and 0xFFFFFFFFL)
+    }
+
+    fun writeLong(value: Long) {
+        var v = value
+        while (v and 0x7FL.inv() != 0L) {
+            myOut.writeByte(((v and 0x7F) or 0x80).toInt())
+            v = v ushr 7
+        }
+        myOut.writeByte(v.toInt())
+    }
+
+    fun writeBytes(bytes: ByteArray) {
+        myOut.write(bytes)
+    }
+
+    fun writeString(value: String) {
+        val bytes = value.toByteArray(Charsets.UTF_8)
+        writeInt(bytes.size)
+        myOut.write(bytes)
+    }
+
+    /**
+     * Writes string using string table: 0 - null, 1 - new string follows, n - reference to (n-2)-th string in table
+     */
+    fun writeShared(value: String?) {
+        if (value == null) {
+            writeInt(0)
+            return
+        }
+        val index = myStrings[value]
+        if (index != null) {
+            writeInt(index + 2)
+        } else {
+            myStrings[value] = myStrings.size
+            writeInt(1)
+            writeString(value)
+        }
+    }
+
+    override fun close() {
+        myOut.close()
+    }
+}
+
+/**
+ * Reader of snapshots written by [SnapshotOutput]
+ */
+internal class SnapshotInput(input: InputStream) : Closeable {
+    private val myIn = DataInputStream(BufferedInputStream(input, 64 * 1024))
+    private val myStrings = ArrayList<String>()
+
+    /**
+     * @return format version or null if stream doesn't start with given [magic]
+     */
+    fun readHeader(magic: Int): Int? {
+        if (myIn.readInt() != magic) return null
+        return readInt()
+    }
+
+    fun readByte(): Int = myIn.readUnsignedByte()
+
+    fun readInt(): Int = readLong().toInt()
+
+    fun readLong(): Long {
+        var result = 0L
+        var shift = 0
+        while (true) {
+            val b = myIn.readUnsignedByte()
+            result = result or ((b and 0x7F).toLong() shl shift)
+            if (b and 0x80 == 0) return result
+            shift += 7
+            if (shift > 63) throw IOException("Malformed variable-length number")
+        }
+    }
+
+    fun readBytes(count: Int): ByteArray {
+        val bytes = ByteArray(count)
+        myIn.readFully(bytes)
+        return bytes
+    }
+
+    fun readString(): String {
+        return String(readBytes(readInt()), Charsets.UTF_8)
+    }
+
+    fun readShared(): String? {
+        return when (val ref = readInt()) {
+            0 -> null
+            1 -> readString().also { myStrings.add(it) }
+            else -> myStrings.getOrNull(ref - 2) ?: throw IOException("Malformed string table reference $ref")
+        }
+    }
+
+    override fun close() {
+        myIn.close()
+    }
+}
+
+/**
+ * Writes [file] via temporary file which is renamed on success, so readers never see partially written file.
+ * Temporary file is synced to disk before rename, so that after crash file has either previous or new content,
+ * and data referenced by new content could be dropped (e.g. compacted journal segments)
+ */
+internal fun writeAtomically(file: File, action: (OutputStream) -> Unit) {
+    FileUtil.createParentDirs(file)
+    val tmp = File(file.path + ".tmp")
+    try {
+        FileOutputStream(tmp).use { out ->
+            // Writers close stream they're given, while file should be synced before it's closed
+            action(object : FilterOutputStream(out) {
+                override fun write(b: ByteArray, off: Int, len: Int) = out.write(b, off, len)
+                override fun close() = flush()
+            })
+            out.channel.force(true)
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } catch (e: AtomicMoveNotSupportedException) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING)
+        }
+        syncDirectory(file.absoluteFile.parentFile)
+    } finally {
+        FileUtil.delete(tmp)
+    }
+}
+
+/**
+ * Syncs directory entries (e.g. rename) to disk where supported, directories cannot be opened on Windows
+ */
+private fun syncDirectory(dir: File?) {
+    if (dir == null) return
+    try {
+        FileChannel.open(dir.toPath(), StandardOpenOption.READ).use { it.force(true) }
+    } catch (e: IOException) {
+    }
+}
+
+private val myFileLocks = ConcurrentHashMap<String, ReentrantLock>()
+
+/**
+ * Runs [action] holding exclusive lock on [file], used to serialize writers of files shared by nodes via data directory.
+ * File locks are held on behalf of the whole JVM, so lock is also taken within JVM. Reentrant for the same thread
+ */
+internal fun <T> withFileLock(file: File, action: () -> T): T {
+    val lock = myFileLocks.computeIfAbsent(file.absoluteFile.normalize().path) { ReentrantLock() }
+    if (lock.isHeldByCurrentThread) return action()
+    lock.lock()
+    try {
+        FileUtil.createParentDirs(file)
+        RandomAccessFile(file, "rw").channel.use { channel ->
+            channel.lock().use {
+                return action()
+            }
+        }
+    } finally {
+        lock.unlock()
+    }
+}
+
+/**
+ * Keeps file of previous storage format as backup once data is stored in new format
+ */
+internal fun backupLegacyFile(file: File) {
+    if (!file.isFile) return
+    val backup = File(file.path + ".bak")
+    FileUtil.delete(backup)
+    if (!file.renameTo(backup)) FileUtil.delete(file)
+}
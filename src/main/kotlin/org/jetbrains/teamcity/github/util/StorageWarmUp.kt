@@ -0,0 +1,90 @@
+package org.jetbrains.teamcity.github.util
+
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+
+/**
+ * Loading of storage data on server startup.
+ *
+ * Preparation step (e.g. migration) is run first, then loading tasks (e.g. one per shard) are run in parallel on [executor],
+ * so server startup is not blocked by reading of large files.
+ * Storage is ready once all tasks are finished, even if some of them failed: otherwise storage would never become usable.
+ * Could be made synchronous via 'teamcity.commitHooks.storage.warmUp.async=false'
+ */
+internal class StorageWarmUp(private val name: String,
+                             private val executor: Executor,
+                             private val log: Logger) {
+    companion object {
+        const val ASYNC_PROPERTY = "teamcity.commitHooks.storage.warmUp.async"
+    }
+
+    private val myPrepared = CompletableFuture<Unit>()
+    private val myReady = CompletableFuture<Unit>()
+
+    val isReady: Boolean
+        get() = myReady.isDone
+
+    /**
+     * Runs [action] once storage is ready, immediately if it's ready already
+     */
+    fun whenReady(action: () -> Unit) {
+        myReady.thenRun(action)
+    }
+
+    /**
+     * @return whether storage became ready in given time
+     */
+    fun await(timeout: Long, unit: TimeUnit): Boolean {
+        return await(myReady, timeout, unit)
+    }
+
+    /**
+     * Waits for preparation step only, after it storage files could be written even though they are not loaded yet
+     * @return whether preparation step finished in given time
+     */
+    fun awaitPrepared(timeout: Long, unit: TimeUnit): Boolean {
+        return await(myPrepared, timeout, unit)
+    }
+
+    private fun await(future: CompletableFuture<Unit>, timeout: Long, unit: TimeUnit): Boolean {
+        try {
+            future.get(timeout, unit)
+        } catch (e: Exception) {
+        }
+        return future.isDone
+    }
+
+    fun start(prepare: () -> Unit, tasks: List<() -> Unit>, summary: () -> String) {
+        val started = System.currentTimeMillis()
+        val async = TeamCityProperties.getBooleanOrTrue(ASYNC_PROPERTY)
+        val runner = if (async) Executor { runOrInPlace(it) } else Executor { it.run() }
+        log.info("Loading $name ${if (async) "in background" else ""}".trimEnd())
+
+        CompletableFuture.runAsync(Runnable { prepare() }, runner)
+            .exceptionally { e -> log.warnAndDebugDetails("Failed to prepare $name", e); null }
+            .thenCompose {
+                myPrepared.complete(Unit)
+                val loads = tasks.map { task ->
+                    CompletableFuture.runAsync(Runnable { task() }, runner)
+                        .exceptionally { e -> log.warnAndDebugDetails("Failed to load $name", e); null }
+                }
+                CompletableFuture.allOf(*loads.toTypedArray())
+            }
+            .whenComplete { _, _ ->
+                log.info("Loaded $name in ${System.currentTimeMillis() - started} ms: ${summary()}")
+                myReady.complete(Unit)
+            }
+    }
+
+    private fun runOrInPlace(task: Runnable) {
+        try {
+            executor.execute(task)
+        } catch (e: RejectedExecutionException) {
+            task.run()
+        }
+    }
+}
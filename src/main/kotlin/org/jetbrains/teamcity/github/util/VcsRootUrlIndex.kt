@@ -0,0 +1,159 @@
+package org.jetbrains.teamcity.github.util
+
+import jetbrains.buildServer.serverSide.ProjectManager
+import jetbrains.buildServer.vcs.SVcsRoot
+import jetbrains.buildServer.vcs.VcsRootInstance
+import org.jetbrains.teamcity.github.Util
+
+/**
+ * Index of git VCS roots by normalized repository url.
+ *
+ * Roots with parameter references in url are indexed by resolved urls of their instances,
+ * such roots are re-resolved lazily after any change which may affect parameters: all of them after project modification,
+ * only roots attached to build type after its modification.
+ * Whole index is rebuilt lazily on first lookup and after project removal.
+ */
+internal class VcsRootUrlIndex(private val projectManager: ProjectManager,
+                               private val instancesOf: (SVcsRoot) -> Collection<VcsRootInstance>,
+                               private val normalizeUrl: (String?) -> String?) {
+
+    companion object {
+        private val LOG = Util.getLogger(VcsRootUrlIndex::class.java)
+    }
+
+    // All maps are guarded by myLock
+    private val myLock = Any()
+    private val myRoots = HashMap<Long, SVcsRoot>()
+    private val myUrlToRoots = HashMap<String, MutableSet<Long>>()
+    private val myRootToUrls = HashMap<Long, Set<String>>()
+    private val myParametrizedRoots = HashSet<Long>()
+    private val myDirtyRoots = HashSet<Long>()
+
+    @Volatile private var myRebuildNeeded = true
+    @Volatile private var myParametrizedDirty = false
+    @Volatile private var myDirtyRootsPending = false
+
+    fun find(urls: Collection<String>): Collection<SVcsRoot> {
+        ensureUpToDate()
+        synchronized(myLock) {
+            return urls.flatMap { myUrlToRoots[it] ?: emptySet<Long>() }.toSet().mapNotNull { myRoots[it] }
+        }
+    }
+
+    fun rootUpdated(root: SVcsRoot) {
+        if (myRebuildNeeded) return
+        synchronized(myLock) {
+            remove(root.id)
+            add(root)
+        }
+    }
+
+    fun rootRemoved(root: SVcsRoot) {
+        if (myRebuildNeeded) return
+        synchronized(myLock) {
+            remove(root.id)
+        }
+    }
+
+    fun projectChanged(projectId: String) {
+        if (myRebuildNeeded) return
+        val project = projectManager.findProjectById(projectId)
+        if (project == null) {
+            invalidate()
+            return
+        }
+        synchronized(myLock) {
+            for (root in project.ownVcsRoots) {
+                remove(root.id)
+                add(root)
+            }
+        }
+        invalidateParametrized()
+    }
+
+    /**
+     * Parameters or VCS root attachments were changed, resolved urls of parametrized roots may be outdated
+     */
+    fun invalidateParametrized() {
+        myParametrizedDirty = true
+    }
+
+    /**
+     * Resolved urls of given parametrized roots may be outdated, e.g. parameters of build type they're attached to were changed.
+     * Urls of roots detached from build type are kept till next re-resolve, lookup results are filtered by urls of instances anyway
+     */
+    fun invalidateParametrized(roots: Collection<SVcsRoot>) {
+        if (myRebuildNeeded || roots.isEmpty()) return
+        synchronized(myLock) {
+            roots.mapTo(myDirtyRoots) { it.id }
+            myDirtyRootsPending = true
+        }
+    }
+
+    fun invalidate() {
+        myRebuildNeeded = true
+    }
+
+    private fun ensureUpToDate() {
+        if (!myRebuildNeeded && !myParametrizedDirty && !myDirtyRootsPending) return
+        synchronized(myLock) {
+            myDirtyRootsPending = false
+            val dirty = ArrayList(myDirtyRoots)
+            myDirtyRoots.clear()
+            if (myRebuildNeeded) {
+                val start = System.currentTimeMillis()
+                myParametrizedDirty = false
+                myRebuildNeeded = false
+                myRoots.clear()
+                myUrlToRoots.clear()
+                myRootToUrls.clear()
+                myParametrizedRoots.clear()
+                projectManager.allVcsRoots.forEach { add(it) }
+                LOG.debug("VCS roots url index rebuilt in ${System.currentTimeMillis() - start} ms: ${myRoots.size} roots, ${myUrlToRoots.size} urls")
+            } else if (myParametrizedDirty) {
+                myParametrizedDirty = false
+                for (id in myParametrizedRoots.toList()) {
+                    val root = myRoots[id] ?: continue
+                    remove(id)
+                    add(root)
+                }
+            } else {
+                for (id in dirty) {
+                    if (id !in myParametrizedRoots) continue
+                    val root = myRoots[id] ?: continue
+                    remove(id)
+                    add(root)
+                }
+            }
+        }
+    }
+
+    // Should be called under myLock
+    private fun add(root: SVcsRoot) {
+        if (!isParamRefOrMatches(root.vcsName) { it == "jetbrains.git" }) return
+        val url = root.getProperty("url") ?: return
+        val urls = if (url.contains("%")) {
+            myParametrizedRoots.add(root.id)
+            instancesOf(root).mapNotNull { normalizeUrl(it.getProperty("url")) }.toSet()
+        } else {
+            setOfNotNull(normalizeUrl(url))
+        }
+        myRoots[root.id] = root
+        myRootToUrls[root.id] = urls
+        for (it in urls) {
+            myUrlToRoots.computeIfAbsent(it) { HashSet() }.add(root.id)
+        }
+    }
+
+    // Should be called under myLock
+    private fun remove(id: Long) {
+        myRoots.remove(id)
+        myParametrizedRoots.remove(id)
+        val urls = myRootToUrls.remove(id) ?: return
+        for (url in urls) {
+            val ids = myUrlToRoots[url] ?: continue
+            ids.remove(id)
+            if (ids.isEmpty()) myUrlToRoots.remove(url)
+        }
+    }
+}
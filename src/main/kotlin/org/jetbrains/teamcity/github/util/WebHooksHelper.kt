@@ -1,18 +1,88 @@
 package org.jetbrains.teamcity.github.util
 
+import jetbrains.buildServer.serverSide.BuildServerAdapter
+import jetbrains.buildServer.serverSide.BuildServerListener
 import jetbrains.buildServer.serverSide.ProjectManager
+import jetbrains.buildServer.serverSide.SBuildType
+import jetbrains.buildServer.serverSide.SProject
+import jetbrains.buildServer.serverSide.SecurityContextEx
+import jetbrains.buildServer.serverSide.TeamCityProperties
 import jetbrains.buildServer.serverSide.auth.Permission
-import jetbrains.buildServer.serverSide.auth.SecurityContext
+import jetbrains.buildServer.serverSide.executors.ExecutorServices
 import jetbrains.buildServer.serverSide.versionedSettings.VersionedSettingsManager
+import jetbrains.buildServer.users.SUser
+import jetbrains.buildServer.util.EventDispatcher
 import jetbrains.buildServer.vcs.ChangesCheckingService
 import jetbrains.buildServer.vcs.OperationRequestor
+import jetbrains.buildServer.vcs.SVcsRoot
 import jetbrains.buildServer.vcs.VcsRootInstance
 import org.eclipse.egit.github.core.Repository
+import org.jetbrains.teamcity.github.RepoKey
 
 class WebHooksHelper(private val projectManager: ProjectManager,
                      private val versionedSettingsManager: VersionedSettingsManager,
-                     private val securityContext: SecurityContext,
-                     private val changesCheckingService: ChangesCheckingService) {
+                     private val securityContext: SecurityContextEx,
+                     private val changesCheckingService: ChangesCheckingService,
+                     executorServices: ExecutorServices,
+                     private val serverEventDispatcher: EventDispatcher<BuildServerListener>) {
+
+    companion object {
+        const val COALESCE_WINDOW_PROPERTY = "teamcity.githubWebhooks.checkForChanges.coalesceWindow.ms"
+        const val COALESCE_MAX_DELAY_PROPERTY = "teamcity.githubWebhooks.checkForChanges.maxDelay.ms"
+        const val VCS_ROOTS_INDEX_ENABLED_PROPERTY = "teamcity.githubWebhooks.vcsRootsIndex.enabled"
+    }
+
+    private val myCoalescer = ChangesCheckCoalescer<CheckKey, VcsRootInstance>(executorServices.normalExecutorService) { key, roots ->
+        // Coalesced requests are flushed on scheduler thread, outside of security context of request
+        securityContext.runAs<Unit>(key.user) { checkForChanges(roots) }
+    }
+    private val myIndex = VcsRootUrlIndex(projectManager, { vcsRoot -> getVcsRootInstances(vcsRoot, { true }) }, { normalizeGitUrl(it) })
+
+    private val myServerListener = object : BuildServerAdapter() {
+        override fun vcsRootUpdated(oldVcsRoot: SVcsRoot, newVcsRoot: SVcsRoot) {
+            myIndex.rootUpdated(newVcsRoot)
+        }
+
+        override fun vcsRootRemoved(root: SVcsRoot) {
+            myIndex.rootRemoved(root)
+        }
+
+        override fun projectPersisted(projectId: String) {
+            myIndex.projectChanged(projectId)
+        }
+
+        override fun projectRestored(projectId: String) {
+            myIndex.projectChanged(projectId)
+        }
+
+        override fun projectCreated(projectId: String, user: SUser?) {
+            myIndex.projectChanged(projectId)
+        }
+
+        override fun projectRemoved(project: SProject) {
+            myIndex.invalidate()
+        }
+
+        override fun buildTypeRegistered(buildType: SBuildType) {
+            myIndex.invalidateParametrized()
+        }
+
+        override fun buildTypeUnregistered(buildType: SBuildType) {
+            myIndex.invalidateParametrized()
+        }
+
+        override fun buildTypePersisted(buildType: SBuildType) {
+            myIndex.invalidateParametrized(buildType.vcsRoots)
+        }
+    }
+
+    fun init() {
+        serverEventDispatcher.addListener(myServerListener)
+    }
+
+    fun destroy() {
+        serverEventDispatcher.removeListener(myServerListener)
+    }
 
     fun findRelevantVcsRootInstances(repository: Repository): Collection<VcsRootInstance> {
         if (repository.cloneUrl.isNullOrEmpty())
@@ -20,35 +90,65 @@ class WebHooksHelper(private val projectManager: ProjectManager,
 
         val repoUrls = setOf(repository.gitUrl, repository.cloneUrl, repository.sshUrl).filterNotNull().map { normalizeGitUrl(it) }
 
-        val prefilteredVcsRoots = projectManager.allVcsRoots
-            .filter {vcsRoot ->
-                isParamRefOrMatches(vcsRoot.vcsName) {
-                    it == "jetbrains.git"
+        val prefilteredVcsRoots = if (TeamCityProperties.getBooleanOrTrue(VCS_ROOTS_INDEX_ENABLED_PROPERTY)) {
+            myIndex.find(repoUrls)
+        } else {
+            projectManager.allVcsRoots
+                .filter { vcsRoot ->
+                    isParamRefOrMatches(vcsRoot.vcsName) {
+                        it == "jetbrains.git"
+                    }
+                    && isParamRefOrMatches(normalizeGitUrl(vcsRoot.getProperty("url"))) {
+                        repoUrls.contains(it)
+                    }
                 }
-                && isParamRefOrMatches(normalizeGitUrl(vcsRoot.getProperty("url"))) {
-                    repoUrls.contains(it)
-                }
-            }
+        }
         val authorityHolder = securityContext.authorityHolder
+        val hasPermission: (String) -> Boolean = { projectId -> authorityHolder.isPermissionGrantedForProject(projectId, Permission.VIEW_BUILD_CONFIGURATION_SETTINGS) }
         return prefilteredVcsRoots
-            .flatMap {
-                vcsRoot ->
-                    vcsRoot.usagesInConfigurations
-                        .filter { buildType -> authorityHolder.isPermissionGrantedForProject(buildType.projectId, Permission.VIEW_BUILD_CONFIGURATION_SETTINGS) }
-                        .map { buildType -> buildType.getVcsRootInstanceForParent(vcsRoot) } +
-                    versionedSettingsManager.getProjectsByOwnSettingsRoot(vcsRoot)
-                        .filter { project -> authorityHolder.isPermissionGrantedForProject(project.projectId, Permission.VIEW_BUILD_CONFIGURATION_SETTINGS) }
-                        .map { project -> versionedSettingsManager.getVersionedSettingsVcsRootInstance(project) }
-            }.toSet().filterNotNull()
+            .flatMap { vcsRoot -> getVcsRootInstances(vcsRoot, hasPermission) }
+            .toSet()
             .filter { repoUrls.contains(normalizeGitUrl(it.getProperty("url"))) }
     }
 
-    private fun isParamRefOrMatches(value: String?, condition: (String) -> Boolean): Boolean = value != null && (value.contains("%") || condition(value))
+    private fun getVcsRootInstances(vcsRoot: SVcsRoot, isProjectAccessible: (String) -> Boolean): List<VcsRootInstance> {
+        return (vcsRoot.usagesInConfigurations
+                    .filter { buildType -> isProjectAccessible(buildType.projectId) }
+                    .map { buildType -> buildType.getVcsRootInstanceForParent(vcsRoot) } +
+                versionedSettingsManager.getProjectsByOwnSettingsRoot(vcsRoot)
+                    .filter { project -> isProjectAccessible(project.projectId) }
+                    .map { project -> versionedSettingsManager.getVersionedSettingsVcsRootInstance(project) })
+            .filterNotNull()
+    }
 
     fun checkForChanges(vcsRoots: Collection<VcsRootInstance>) {
         changesCheckingService.forceCheckingFor(vcsRoots, OperationRequestor.COMMIT_HOOK)
     }
 
+    /**
+     * Coalesces checking for changes requests for same repository made by same user, see [ChangesCheckCoalescer].
+     * Checking for changes is requested on behalf of [user], same as non-coalesced requests
+     */
+    fun scheduleCheckForChanges(key: RepoKey?, user: SUser, vcsRoots: Collection<VcsRootInstance>) {
+        val window = TeamCityProperties.getLong(COALESCE_WINDOW_PROPERTY, 100)
+        if (key == null || window <= 0) {
+            checkForChanges(vcsRoots)
+            return
+        }
+        myCoalescer.schedule(CheckKey(key, user), vcsRoots, window, TeamCityProperties.getLong(COALESCE_MAX_DELAY_PROPERTY, 300))
+    }
+
+    /**
+     * Repository and user who requested checking for changes, user instance of first request is used for coalesced ones
+     */
+    private class CheckKey(val repository: RepoKey, val user: SUser) {
+        override fun equals(other: Any?): Boolean = other is CheckKey && repository == other.repository && user.id == other.user.id
+
+        override fun hashCode(): Int = 31 * repository.hashCode() + user.id.hashCode()
+
+        override fun toString(): String = "$repository (user ${user.id})"
+    }
+
     private fun normalizeGitUrl(url: String?) = url?.let {
         removePrefix(removePrefix(url, "://"), "@")
             .removeSuffix(".git").lowercase()
@@ -60,3 +160,8 @@ class WebHooksHelper(private val projectManager: ProjectManager,
     }
 
 }
+
+/**
+ * @return whether [value] contains parameter reference (so cannot be checked until resolved) or matches [condition]
+ */
+internal fun isParamRefOrMatches(value: String?, condition: (String) -> Boolean): Boolean = value != null && (value.contains("%") || condition(value))
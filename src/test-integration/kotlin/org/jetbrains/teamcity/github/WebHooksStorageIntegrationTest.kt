@@ -1,8 +1,12 @@
 package org.jetbrains.teamcity.github
 
+import jetbrains.buildServer.serverSide.BuildServerListener
 import jetbrains.buildServer.serverSide.impl.BaseServerTestCase
+import jetbrains.buildServer.util.EventDispatcher
 import jetbrains.buildServer.util.cache.CacheProvider
 import org.eclipse.egit.github.core.RepositoryHook
+import org.jetbrains.teamcity.github.util.StorageWarmUp
+import org.testng.annotations.AfterMethod
 import org.testng.annotations.BeforeMethod
 import org.testng.annotations.Test
 import org.assertj.core.api.BDDAssertions.then
@@ -11,6 +15,7 @@ import org.jetbrains.teamcity.github.controllers.Status
 class WebHooksStorageIntegrationTest: BaseServerTestCase() {
 
     private lateinit var hookStorage: WebHooksStorage
+    private val nodes = ArrayList<Pair<WebHooksStorage, EventDispatcher<BuildServerListener>>>()
 
     @BeforeMethod
     override fun setUp() {
@@ -19,6 +24,13 @@ class WebHooksStorageIntegrationTest: BaseServerTestCase() {
                                       myFixture.serverPaths, myFixture.eventDispatcher, myFixture.executorServices)
     }
 
+    @AfterMethod
+    override fun tearDown() {
+        nodes.forEach { stopNode(it) }
+        nodes.clear()
+        super.tearDown()
+    }
+
     @Test
     fun `add hook`() {
         val hook = repoHook(123)
@@ -66,7 +78,46 @@ class WebHooksStorageIntegrationTest: BaseServerTestCase() {
         then(info.status).isEqualTo(Status.WAITING_FOR_SERVER_RESPONSE)
         val f = hookStorage.getStorageFile()
         waitFor({ f.exists() }, 10000L)
-        then(f.readText()).contains("hooks/123")
+        then(f.inputStream().use { WebHooksSnapshot.read(it) }!!.map { it.url }).containsOnly(hook.url)
+    }
+
+    @Test
+    fun `nodes sharing data directory keep changes of each other`() {
+        setInternalProperty(StorageWarmUp.ASYNC_PROPERTY, "false")
+        setInternalProperty("teamcity.commitHooks.webHookStorage.watchInterval", "100")
+        val first = startNode("node1")
+        val second = startNode("node2")
+
+        // Each node compacts journal after adding hook, snapshot should keep hook of another node
+        first.first.getOrAdd(repoHook(123))
+        second.first.getOrAdd(repoHook(345))
+        waitFor({ first.first.getAll().size == 2 && second.first.getAll().size == 2 }, 10000L)
+
+        // Changes written to journal of one node are applied by another one
+        second.first.delete(second.first.getAll().single { it.second.id == 123L }.second)
+        first.first.getAll().single { it.second.id == 345L }.second.status = Status.OK
+        waitFor({ first.first.getAll().size == 1 && second.first.getAll().single().second.status == Status.OK }, 10000L)
+
+        stopNode(first)
+        stopNode(second)
+        nodes.clear()
+        val third = startNode("node3")
+        then(third.first.getAll().map { it.second.id }).containsOnly(345L)
+        then(third.first.getAll().single().second.status).isEqualTo(Status.OK)
+    }
+
+    private fun startNode(nodeId: String): Pair<WebHooksStorage, EventDispatcher<BuildServerListener>> {
+        val dispatcher = EventDispatcher.create(BuildServerListener::class.java)
+        val storage = WebHooksStorage(myFixture.getSingletonService(CacheProvider::class.java), myFixture.fileWatcherFactory,
+                                      myFixture.serverPaths, dispatcher, myFixture.executorServices, nodeId)
+        storage.init()
+        dispatcher.multicaster.serverStartup()
+        return (storage to dispatcher).also { nodes.add(it) }
+    }
+
+    private fun stopNode(node: Pair<WebHooksStorage, EventDispatcher<BuildServerListener>>) {
+        node.second.multicaster.serverShutdown()
+        node.first.destroy()
     }
 
     private fun repoHook(hookId: Long): RepositoryHook {
@@ -0,0 +1,156 @@
+package org.jetbrains.teamcity.github.controllers
+
+import jetbrains.buildServer.controllers.AuthorizationInterceptor
+import jetbrains.buildServer.serverSide.BuildServerListener
+import jetbrains.buildServer.serverSide.WebLinks
+import jetbrains.buildServer.serverSide.connections.ProjectConnectionsManager
+import jetbrains.buildServer.serverSide.impl.BaseServerTestCase
+import jetbrains.buildServer.serverSide.oauth.OAuthConnectionsManager
+import jetbrains.buildServer.serverSide.oauth.OAuthTokensStorage
+import jetbrains.buildServer.serverSide.versionedSettings.VersionedSettingsManager
+import jetbrains.buildServer.users.SUser
+import jetbrains.buildServer.util.EventDispatcher
+import jetbrains.buildServer.util.cache.CacheProvider
+import jetbrains.buildServer.vcs.ChangesCheckingService
+import jetbrains.buildServer.vcs.RepositoryStateListener
+import jetbrains.buildServer.web.openapi.WebControllerManager
+import jetbrains.spring.web.UrlMapping
+import org.assertj.core.api.BDDAssertions.then
+import org.eclipse.egit.github.core.RepositoryHook
+import org.jetbrains.teamcity.github.*
+import org.jetbrains.teamcity.github.util.StorageWarmUp
+import org.jetbrains.teamcity.github.util.WebHooksHelper
+import org.jetbrains.teamcity.impl.RestApiFacade
+import org.jetbrains.teamcity.impl.fakes.FakeHttpRequestsFactory
+import org.jetbrains.teamcity.impl.fakes.FakeHttpServletRequest
+import org.jetbrains.teamcity.impl.fakes.FakeHttpServletResponse
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+import java.io.ByteArrayInputStream
+import java.lang.reflect.Proxy
+import javax.servlet.ServletContext
+import javax.servlet.http.HttpServletResponse
+
+class GitHubWebHookListenerTest : BaseServerTestCase() {
+    private val server = "teamcity-github-enterprise.labs.intellij.net"
+
+    private lateinit var serverEventDispatcher: EventDispatcher<BuildServerListener>
+    private lateinit var authDataStorage: AuthDataStorage
+    private lateinit var webHooksStorage: WebHooksStorage
+    private lateinit var listener: GitHubWebHookListener
+    private lateinit var user: SUser
+    private var deliveries = 0
+
+    @BeforeMethod
+    override fun setUp() {
+        super.setUp()
+        setInternalProperty(StorageWarmUp.ASYNC_PROPERTY, "false")
+        serverEventDispatcher = EventDispatcher.create(BuildServerListener::class.java)
+        authDataStorage = AuthDataStorage(myFixture.executorServices, myFixture.fileWatcherFactory, myFixture.serverPaths, serverEventDispatcher)
+        webHooksStorage = WebHooksStorage(myFixture.getSingletonService(CacheProvider::class.java), myFixture.fileWatcherFactory,
+                                          myFixture.serverPaths, serverEventDispatcher, myFixture.executorServices)
+        authDataStorage.init()
+        webHooksStorage.init()
+        serverEventDispatcher.multicaster.serverStartup()
+
+        val webHooksManager = WebHooksManager(myFixture.getSingletonService(WebLinks::class.java), EventDispatcher.create(RepositoryStateListener::class.java),
+                                              authDataStorage, webHooksStorage, GitHubResponseCache())
+        val webHooksHelper = WebHooksHelper(myProjectManager, myFixture.getSingletonService(VersionedSettingsManager::class.java), myFixture.securityContext,
+                                            myFixture.getSingletonService(ChangesCheckingService::class.java), myFixture.executorServices, serverEventDispatcher)
+        val restApiFacade = RestApiFacade(UrlMapping(), FakeHttpRequestsFactory(stub<ServletContext>()), myFixture.userModel, myFixture.securityContext)
+        val tokensHelper = TokensHelper(myFixture.getSingletonService(ProjectConnectionsManager::class.java), myFixture.getSingletonService(OAuthTokensStorage::class.java))
+        val mergeBranchChecker = PullRequestMergeBranchChecker(myProjectManager, OAuthConnectionsManager(myServer), authDataStorage, webHooksManager,
+                                                               myFixture.executorServices, restApiFacade, tokensHelper, GitHubClientPool())
+        // Disabled queue makes listener process deliveries synchronously
+        setInternalProperty(WebHookDeliveryQueue.THREADS_PROPERTY, "0")
+        val deliveryQueue = WebHookDeliveryQueue(serverEventDispatcher)
+
+        listener = GitHubWebHookListener(stub<WebControllerManager>(), stub<AuthorizationInterceptor>(), authDataStorage, myFixture.userModel,
+                                         mergeBranchChecker, webHooksManager, myFixture.securityContext, webHooksHelper, deliveryQueue)
+        user = createUser("user")
+    }
+
+    @AfterMethod
+    override fun tearDown() {
+        authDataStorage.destroy()
+        webHooksStorage.destroy()
+        super.tearDown()
+    }
+
+    @Test
+    fun testDuplicatePushSkipped() {
+        val (authData, hook) = addHook("Vlad", "test-repo-1")
+        val payload = readPayload("example-push-payload.json")
+
+        then(deliver(authData, "push", payload)).isEqualTo(HttpServletResponse.SC_OK)
+        then(hook.getBranchRevision("refs/heads/master")).isEqualTo("eca9721cfb75b8cfc70b78873335c3f176773e02")
+        then(listener.skippedKnownRevisions).isEqualTo(0)
+
+        // Same ref and revision delivered as new delivery (e.g. pushed to other repository which hook is also installed)
+        then(deliver(authData, "push", payload)).isEqualTo(HttpServletResponse.SC_OK)
+        then(listener.skippedKnownRevisions).isEqualTo(1)
+
+        deliver(authData, "push", payload.replace("eca9721cfb75b8cfc70b78873335c3f176773e02", "1111111111111111111111111111111111111111"))
+        then(listener.skippedKnownRevisions).isEqualTo(1)
+        then(hook.getBranchRevision("refs/heads/master")).isEqualTo("1111111111111111111111111111111111111111")
+    }
+
+    @Test
+    fun testDuplicatePullRequestHeadAndMergeSkipped() {
+        val (authData, hook) = addHook("Vlad", "test")
+        val payload = readPayload("example-pull-request-synchronize-payload.json")
+        val mergeSha = "eb31486a0b0f03e12d98a77b25ca6c5d164f2514"
+
+        deliver(authData, "pull_request", payload)
+        then(hook.getBranchRevision("refs/pull/3/merge")).isEqualTo(mergeSha)
+        then(hook.getBranchRevision("refs/pull/3/head")).isNotNull()
+        then(listener.skippedKnownRevisions).isEqualTo(0)
+
+        deliver(authData, "pull_request", payload)
+        then(listener.skippedKnownRevisions).isEqualTo(1)
+
+        // Same head, but base branch was changed, so merge commit is new
+        deliver(authData, "pull_request", payload.replace(mergeSha, "2222222222222222222222222222222222222222"))
+        then(listener.skippedKnownRevisions).isEqualTo(1)
+        then(hook.getBranchRevision("refs/pull/3/merge")).isEqualTo("2222222222222222222222222222222222222222")
+    }
+
+    private fun addHook(owner: String, name: String): Pair<AuthDataStorage.AuthData, WebHookInfo> {
+        val repository = GitHubRepositoryInfo(server, owner, name)
+        val authData = AuthDataStorage.AuthData(user.id, "public-$name", "secret-$name", repository, AuthDataStorage.ConnectionInfo("connection", "_Root"))
+        authDataStorage.store(authData)
+
+        val hook = RepositoryHook()
+        hook.id = 1
+        hook.url = "https://$server/api/v3/repos/$owner/$name/hooks/1"
+        hook.config = hashMapOf("url" to "http://localhost${GitHubWebHookListener.PATH}/${authData.public}")
+        hook.isActive = true
+        return authData to webHooksStorage.getOrAdd(hook)
+    }
+
+    private fun deliver(authData: AuthDataStorage.AuthData, event: String, payload: String): Int {
+        val bytes = payload.toByteArray(Charsets.UTF_8)
+        val request = FakeHttpServletRequest()
+        request.method = "POST"
+        request.setRequestURI("${GitHubWebHookListener.PATH}/${authData.public}")
+        request.setHeader(GitHubWebHookListener.X_GitHub_Event, event)
+        request.setHeader(GitHubWebHookListener.X_GitHub_Delivery, "delivery-${++deliveries}")
+        val signature = HMacUtil.withMac(authData.public, authData.secret, HMacUtil.HMAC_Algorithm) { mac ->
+            HMacUtil.Signature(HMacUtil.HMAC_Algorithm, mac.doFinal(bytes)).toString()
+        }
+        request.setHeader(GitHubWebHookListener.X_Hub_Signature, signature)
+        request.setInputStream(ByteArrayInputStream(bytes))
+        val response = FakeHttpServletResponse()
+        listener.handleRequest(request, response)
+        return response.status
+    }
+
+    private fun readPayload(name: String): String {
+        return javaClass.classLoader.getResourceAsStream(name)!!.reader(Charsets.UTF_8).use { it.readText() }
+    }
+
+    private inline fun <reified T : Any> stub(): T {
+        return Proxy.newProxyInstance(T::class.java.classLoader, arrayOf(T::class.java)) { _, _, _ -> null } as T
+    }
+}
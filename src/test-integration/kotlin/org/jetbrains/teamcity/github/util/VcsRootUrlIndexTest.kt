@@ -0,0 +1,60 @@
+package org.jetbrains.teamcity.github.util
+
+import jetbrains.buildServer.serverSide.SimpleParameter
+import jetbrains.buildServer.serverSide.impl.BaseServerTestCase
+import jetbrains.buildServer.serverSide.impl.ProjectEx
+import jetbrains.buildServer.vcs.SVcsRoot
+import jetbrains.buildServer.vcs.SVcsRootEx
+import org.assertj.core.api.BDDAssertions.then
+import org.jetbrains.teamcity.github.Constants
+import org.testng.annotations.Test
+
+class VcsRootUrlIndexTest : BaseServerTestCase() {
+    private val urls = listOf("github.com/a/b", "github.com/a/c", "github.com/a/d", "github.com/a/e", "github.com/a/f")
+
+    @Test
+    fun testIncrementalUpdatesMatchRebuild() {
+        val project = myFixture.createProject("P1")
+        val bt = registerBuildType("BT1", project, "Ant")
+        val updated = addGitVcsRoot(project, "https://github.com/A/B")
+        val removed = addGitVcsRoot(project, "https://github.com/A/C")
+        val parametrized = addGitVcsRoot(project, "https://github.com/A/%repo%")
+        bt.addVcsRoot(parametrized)
+        bt.addParameter(SimpleParameter("repo", "E"))
+
+        val index = createIndex()
+        then(index.find(listOf("github.com/a/b"))).containsExactly(updated)
+        then(index.find(listOf("github.com/a/e"))).containsExactly(parametrized)
+
+        updated.properties = mapOf(Constants.VCS_PROPERTY_GIT_URL to "https://github.com/A/D")
+        index.rootUpdated(updated)
+        project.removeVcsRoot(removed)
+        index.rootRemoved(removed)
+        bt.addParameter(SimpleParameter("repo", "F"))
+        index.invalidateParametrized()
+
+        then(index.find(listOf("github.com/a/b"))).isEmpty()
+        then(index.find(listOf("github.com/a/d"))).containsExactly(updated)
+        then(index.find(listOf("github.com/a/c"))).isEmpty()
+        then(index.find(listOf("github.com/a/f"))).containsExactly(parametrized)
+
+        val rebuilt = createIndex()
+        for (url in urls) {
+            then(ids(index.find(listOf(url)))).describedAs(url).isEqualTo(ids(rebuilt.find(listOf(url))))
+        }
+    }
+
+    private fun createIndex(): VcsRootUrlIndex {
+        return VcsRootUrlIndex(myProjectManager,
+                               { root -> root.usagesInConfigurations.mapNotNull { it.getVcsRootInstanceForParent(root) } },
+                               { url -> url?.substringAfter("://")?.removeSuffix(".git")?.lowercase() })
+    }
+
+    private fun ids(roots: Collection<SVcsRoot>): Set<Long> = roots.map { it.id }.toSet()
+
+    private fun addGitVcsRoot(project: ProjectEx?, url: String): SVcsRootEx {
+        val vcs = createVcsRoot(Constants.VCS_NAME_GIT, project)
+        vcs.properties = mapOf(Constants.VCS_PROPERTY_GIT_URL to url)
+        return vcs
+    }
+}
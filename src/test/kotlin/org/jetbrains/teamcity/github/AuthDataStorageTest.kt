@@ -2,8 +2,11 @@
 
 package org.jetbrains.teamcity.github
 
+import org.assertj.core.api.Assertions.entry
 import org.assertj.core.api.BDDAssertions.then
 import org.testng.annotations.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
 import java.util.*
 
 class AuthDataStorageTest {
@@ -15,6 +18,30 @@ class AuthDataStorageTest {
         doAuthDataSerializationTest(AuthDataStorage.AuthData(1000, UUID.randomUUID().toString(), UUID.randomUUID().toString(), GitHubRepositoryInfo("server", "owner", "repo"), connInfo))
     }
 
+    @Test
+    fun testAuthDataSnapshot() {
+        val connInfo = AuthDataStorage.ConnectionInfo("CONN_ID", "CONN_PID")
+        val data = listOf(AuthDataStorage.AuthData(1000, "public", "secret", GitHubRepositoryInfo("server", "owner", "repo"), connInfo),
+                          AuthDataStorage.AuthData(1001, UUID.randomUUID().toString(), UUID.randomUUID().toString(), GitHubRepositoryInfo("server", "owner", "repo2"), connInfo),
+                          AuthDataStorage.AuthData(1002, UUID.randomUUID().toString(), UUID.randomUUID().toString(), null, connInfo))
+        val output = ByteArrayOutputStream()
+        AuthDataSnapshot.write(data, output)
+        then(AuthDataSnapshot.read(ByteArrayInputStream(output.toByteArray()))).isEqualTo(data)
+    }
+
+    @Test
+    fun testAuthDataSnapshotVersions() {
+        val connInfo = AuthDataStorage.ConnectionInfo("CONN_ID", "CONN_PID")
+        val data = listOf(AuthDataStorage.AuthData(1000, "public", "secret", GitHubRepositoryInfo("server", "owner", "repo"), connInfo))
+        val output = ByteArrayOutputStream()
+        AuthDataSnapshot.write(data, output, mapOf("public" to 42L), mapOf("removed" to 43L))
+        val versions = HashMap<String, Long>()
+        val removed = HashMap<String, Long>()
+        then(AuthDataSnapshot.read(ByteArrayInputStream(output.toByteArray()), versions, removed)).isEqualTo(data)
+        then(versions).containsExactly(entry("public", 42L))
+        then(removed).containsExactly(entry("removed", 43L))
+    }
+
     private fun doAuthDataSerializationTest(first: AuthDataStorage.AuthData) {
         val second = AuthDataStorage.AuthData.fromJson(first.toJson())
         then(second).isNotNull()
@@ -0,0 +1,51 @@
+package org.jetbrains.teamcity.github
+
+import org.assertj.core.api.BDDAssertions.then
+import org.testng.annotations.Test
+
+class BranchRevisionsTest {
+    private val sha1 = "2b9f0f7e7c3d5d8c21a0a3a2b3e4f5a6b7c8d9e0"
+    private val sha2 = "0000000000000000000000000000000000000001"
+
+    @Test
+    fun testNamesAndRevisionsRestored() {
+        val revisions = BranchRevisions(100)
+        val expected = linkedMapOf("refs/heads/master" to sha1,
+                                   "refs/pull/15/head" to sha2,
+                                   "refs/pull/15/merge" to sha1,
+                                   "refs/pull/015/head" to "not-a-sha",
+                                   "refs/pull/head" to sha1,
+                                   "refs/pull/1/other" to sha2)
+        expected.forEach { revisions.put(it.key, it.value) }
+        then(revisions.toMap()).isEqualTo(expected)
+        then(revisions["refs/pull/15/merge"]).isEqualTo(sha1)
+        then(revisions["refs/pull/16/merge"]).isNull()
+        then(revisions.put("refs/pull/15/merge", sha1)).isNull()
+        then(revisions.put("refs/pull/15/merge", sha2)).isEmpty()
+        then(revisions.has("refs/pull/15/merge", sha2)).isTrue()
+        then(revisions.has("refs/pull/15/merge", sha1)).isFalse()
+        then(revisions.has("refs/pull/015/head", "not-a-sha")).isTrue()
+        then(revisions.has("refs/pull/16/merge", null)).isTrue()
+    }
+
+    @Test
+    fun testLeastRecentlyUpdatedEvicted() {
+        val revisions = BranchRevisions(2)
+        revisions.put("refs/heads/a", sha1)
+        revisions.put("refs/heads/b", sha1)
+        revisions.put("refs/heads/a", sha2)
+        then(revisions.put("refs/heads/c", sha1)).containsExactly("refs/heads/b")
+        then(revisions.toMap().keys).containsExactly("refs/heads/a", "refs/heads/c")
+    }
+
+    @Test
+    fun testPullRequestRemoved() {
+        val revisions = BranchRevisions(100)
+        revisions.put("refs/pull/7/head", sha1)
+        revisions.put("refs/pull/7/merge", sha2)
+        revisions.put("refs/pull/8/head", sha1)
+        then(revisions.removePullRequest(7)).containsExactly("refs/pull/7/head", "refs/pull/7/merge")
+        then(revisions.toMap().keys).containsExactly("refs/pull/8/head")
+        then(revisions.getMemoryUsage()).isPositive()
+    }
+}
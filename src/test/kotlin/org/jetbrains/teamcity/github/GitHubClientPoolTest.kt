@@ -0,0 +1,18 @@
+package org.jetbrains.teamcity.github
+
+import org.assertj.core.api.BDDAssertions.then
+import org.testng.annotations.Test
+
+class GitHubClientPoolTest {
+    @Test
+    fun testClientsReusedPerServerAndToken() {
+        val pool = GitHubClientPool()
+        val client = pool.getClient("https://github.com", "token1")
+        then(pool.getClient("https://github.com", "token1")).isSameAs(client)
+        then(pool.getClient("https://github.com", "token2")).isNotSameAs(client)
+        then(pool.getClient("https://ghe.local", "token1")).isNotSameAs(client)
+
+        pool.invalidate("token1")
+        then(pool.getClient("https://github.com", "token1")).isNotSameAs(client)
+    }
+}
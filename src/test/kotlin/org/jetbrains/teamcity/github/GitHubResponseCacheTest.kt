@@ -0,0 +1,76 @@
+package org.jetbrains.teamcity.github
+
+import com.google.gson.reflect.TypeToken
+import com.sun.net.httpserver.HttpServer
+import org.assertj.core.api.BDDAssertions.then
+import org.eclipse.egit.github.core.RepositoryHook
+import org.eclipse.egit.github.core.client.GitHubClient
+import org.eclipse.egit.github.core.client.GitHubRequest
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+import java.net.InetSocketAddress
+
+class GitHubResponseCacheTest {
+    private lateinit var server: HttpServer
+    private val conditionalRequests = ArrayList<String?>()
+    private var etag = "\"1\""
+
+    @BeforeMethod
+    fun setUp() {
+        server = HttpServer.create(InetSocketAddress("localhost", 0), 0)
+        server.createContext("/") { exchange ->
+            val ifNoneMatch = exchange.requestHeaders.getFirst("If-None-Match")
+            conditionalRequests.add(ifNoneMatch)
+            exchange.responseHeaders.add("ETag", etag)
+            if (ifNoneMatch == etag) {
+                exchange.sendResponseHeaders(304, -1)
+            } else {
+                val body = """[{"id": ${etag.trim('"')}, "name": "web"}]""".toByteArray()
+                exchange.sendResponseHeaders(200, body.size.toLong())
+                exchange.responseBody.write(body)
+            }
+            exchange.close()
+        }
+        server.start()
+    }
+
+    @AfterMethod
+    fun tearDown() {
+        server.stop(0)
+    }
+
+    @Test
+    fun testNotModifiedResponseReused() {
+        val cache = GitHubResponseCache()
+        val client = GitHubClient("localhost", server.address.port, "http").setOAuth2Token("secret")
+        val request = {
+            GitHubRequest().setUri("/repos/owner/repo/hooks").setType(object : TypeToken<List<RepositoryHook>>() {}.type)
+        }
+
+        val first: List<RepositoryHook> = cache.get(client, request(), "secret-hash")
+        first.single().name = "modified"
+        // Cached body is parsed again, so modification of previous result is not visible
+        val second: List<RepositoryHook> = cache.get(client, request(), "secret-hash")
+        then(second).isNotSameAs(first)
+        then(second.single().name).isEqualTo("web")
+        then(cache.getStatistics().hits).isEqualTo(1)
+
+        etag = "\"2\""
+        val third: List<RepositoryHook> = cache.get(client, request(), "secret-hash")
+        then(third.single().id).isEqualTo(2)
+        then(cache.getStatistics().misses).isEqualTo(2)
+        then(conditionalRequests).containsExactly(null, "\"1\"", "\"1\"")
+
+        // Entries are shared by clients with same credentials only
+        cache.get<List<RepositoryHook>>(GitHubClient("localhost", server.address.port, "http").setOAuth2Token("secret"), request(), "secret-hash")
+        then(conditionalRequests.last()).isEqualTo("\"2\"")
+        cache.get<List<RepositoryHook>>(GitHubClient("localhost", server.address.port, "http").setOAuth2Token("other"), request(), "other-hash")
+        then(conditionalRequests.last()).isNull()
+
+        // Clients with unknown credentials are not cached
+        cache.get<List<RepositoryHook>>(client, request())
+        then(conditionalRequests.last()).isNull()
+        then(cache.getStatistics().size).isEqualTo(2)
+    }
+}
@@ -0,0 +1,70 @@
+package org.jetbrains.teamcity.github
+
+import org.assertj.core.api.BDDAssertions.then
+import org.jetbrains.teamcity.github.controllers.Status
+import org.testng.annotations.Test
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+class HookCheckSchedulerTest {
+    private val start = 1500000000000L
+    private var now = start
+    private val scheduler = HookCheckScheduler { now }
+    private val interval = TimeUnit.MINUTES.toMillis(15)
+    private val info = GitHubRepositoryInfo("github.com", "owner", "repo")
+
+    private fun hook(id: Int, status: Status, lastUsed: Date? = null): Pair<GitHubRepositoryInfo, WebHookInfo> {
+        return info to WebHookInfo("https://api.github.com/repos/owner/repo/hooks/$id", "http://teamcity/app/hooks/github/pub$id", status = status, lastUsed = lastUsed)
+    }
+
+    @Test
+    fun testProblemsCheckedSoonerWithBackoff() {
+        val used = hook(1, Status.OK, Date(now - 1000))
+        val unused = hook(2, Status.OK)
+        val failing = hook(3, Status.PAYLOAD_DELIVERY_FAILED)
+        val all = listOf(used, unused, failing)
+
+        val due = scheduler.selectDue(all, now)
+        then(due.first()).isEqualTo(failing)
+        then(due).containsExactlyInAnyOrder(failing, used, unused)
+        scheduler.checked(all.map { it.second }, now, interval)
+
+        now = start + interval
+        then(scheduler.selectDue(all, now)).containsExactly(failing)
+        scheduler.checked(listOf(failing.second), now, interval)
+
+        // Second failure doubles the delay
+        now = start + 2 * interval
+        then(scheduler.selectDue(all, now)).isEmpty()
+        now = start + 3 * interval
+        then(scheduler.selectDue(all, now)).containsExactly(failing)
+
+        now = start + TimeUnit.HOURS.toMillis(2)
+        then(scheduler.selectDue(all, now)).containsExactly(failing, unused)
+    }
+
+    @Test
+    fun testHookWithNewProblemCheckedOnNextRun() {
+        val hook = hook(1, Status.OK, Date(now))
+        scheduler.checked(listOf(hook.second), now, interval)
+        then(scheduler.selectDue(listOf(hook), now + interval)).isEmpty()
+
+        hook.second.status = Status.MISSING
+        then(scheduler.selectDue(listOf(hook), now + interval)).containsExactly(hook)
+    }
+
+    @Test
+    fun testTemporarilyMissingHookKeepsSchedule() {
+        val hook = hook(1, Status.OK, Date(now))
+        scheduler.checked(listOf(hook.second), now, interval)
+
+        // E.g. storage is being reloaded
+        then(scheduler.selectDue(emptyList(), now + interval)).isEmpty()
+        then(scheduler.selectDue(listOf(hook), now + 2 * interval)).isEmpty()
+
+        // Removed hook state is dropped once due, re-added hook is checked as new one
+        now = start + TimeUnit.DAYS.toMillis(2)
+        then(scheduler.selectDue(emptyList(), now)).isEmpty()
+        then(scheduler.selectDue(listOf(hook), now)).containsExactly(hook)
+    }
+}
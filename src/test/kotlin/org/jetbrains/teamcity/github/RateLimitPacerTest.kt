@@ -0,0 +1,60 @@
+package org.jetbrains.teamcity.github
+
+import org.assertj.core.api.BDDAssertions.then
+import org.testng.annotations.Test
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+class RateLimitPacerTest {
+    private var now = 1500000000000L
+    private val pacer = RateLimitPacer({ now }, Random(42))
+
+    @Test
+    fun testRequestsSpreadOverRun() {
+        val run = pacer.startRun(mapOf("github.com" to 4, "ghe.local" to 1), now + 10000)
+        val delays = (1..4).map { run.reserve("github.com", "token")!! }
+        then(delays[0]).isEqualTo(0)
+        // 80% of run spread between 4 requests with 20% jitter
+        for ((previous, next) in delays.zipWithNext()) {
+            then(next - previous).isBetween(1600, 2400)
+        }
+        then(run.reserve("ghe.local", "token")).isEqualTo(0)
+        then(run.reserve("github.com", "token")).isLessThanOrEqualTo(10000)
+    }
+
+    @Test
+    fun testHeadroomLeftForOtherRequests() {
+        val run = pacer.startRun(mapOf("github.com" to 100), null)
+        pacer.update("github.com", "token", 25, 100)
+        val delays = (1..5).map { run.reserve("github.com", "token") }
+        then(delays).doesNotContainNull()
+        // Remaining budget should last until rate limit reset
+        then(delays.last()).isGreaterThan(TimeUnit.MINUTES.toMillis(30))
+        then(run.reserve("github.com", "token")).isNull()
+        then(run.reserve("github.com", "other")).isEqualTo(0)
+
+        now += TimeUnit.HOURS.toMillis(1)
+        then(run.reserve("github.com", "token")).isNotNull()
+    }
+
+    @Test
+    fun testOverlappingRunsKeepOwnSlots() {
+        val periodical = pacer.startRun(mapOf("github.com" to 2), now + 10000)
+        then(periodical.reserve("github.com", "token1")).isEqualTo(0)
+
+        // Forced run started meanwhile is neither spread nor limited by deadline of periodical one
+        val forced = pacer.startRun(mapOf("github.com" to 100), null)
+        then((1..10).map { forced.reserve("github.com", "token2") }).containsOnly(0L)
+
+        // Periodical run keeps its spacing and deadline
+        then(periodical.reserve("github.com", "token1")).isBetween(3200, 4800)
+        now += 20000
+        then(periodical.reserve("github.com", "token1")).isNull()
+        then(forced.reserve("github.com", "token1")).isEqualTo(0)
+
+        // Token budgets are shared by runs
+        pacer.update("github.com", "token3", 20, 100)
+        then(forced.reserve("github.com", "token3")).isNull()
+        then(pacer.startRun(mapOf("github.com" to 1), now + 10000).reserve("github.com", "token3")).isNull()
+    }
+}
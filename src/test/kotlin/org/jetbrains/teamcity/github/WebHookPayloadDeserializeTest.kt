@@ -8,10 +8,12 @@ import org.eclipse.egit.github.core.client.IGitHubConstants
 import org.eclipse.egit.github.core.event.PingWebHookPayload
 import org.eclipse.egit.github.core.event.PullRequestPayloadEx
 import org.eclipse.egit.github.core.event.PushWebHookPayload
+import org.jetbrains.teamcity.github.json.WebHookPayloadReader
 import org.testng.annotations.BeforeClass
 import org.testng.annotations.DataProvider
 import org.testng.annotations.Test
 import java.io.File
+import java.io.StringReader
 import java.text.SimpleDateFormat
 import java.util.*
 
@@ -78,6 +80,35 @@ class WebHookPayloadDeserializeTest {
         Assertions.assertThat(event.pullRequest.mergeCommitSha).isNotNull()
     }
 
+    @Test
+    fun testPushPayloadSelectivelyRead() {
+        val input = getTestFile("example-push-payload.json").readText()
+        val expected = GsonUtilsEx.fromJson(input, PushWebHookPayload::class.java)
+        val event = WebHookPayloadReader.readPushEvent(StringReader(input))
+        Assertions.assertThat(event.ref).isEqualTo(expected.ref)
+        Assertions.assertThat(event.after).isEqualTo(expected.after)
+        Assertions.assertThat(event.repository).isNotNull()
+        Assertions.assertThat(event.repository!!.cloneUrl).isEqualTo(expected.repository.cloneUrl)
+        Assertions.assertThat(event.repository!!.gitUrl).isEqualTo(expected.repository.gitUrl)
+        Assertions.assertThat(event.repository!!.sshUrl).isEqualTo(expected.repository.sshUrl)
+        Assertions.assertThat(event.repository!!.name).isEqualTo(expected.repository.name)
+    }
+
+    @Test(dataProvider = "PullRequestPayloads")
+    fun testPullRequestPayloadSelectivelyRead(fileName: String) {
+        val input = getTestFile(fileName).readText()
+        val expected = GsonUtilsEx.fromJson(input, PullRequestPayloadEx::class.java)
+        val event = WebHookPayloadReader.readPullRequestEvent(StringReader(input))
+        Assertions.assertThat(event.action).isEqualTo(expected.action)
+        Assertions.assertThat(event.number).isEqualTo(expected.number)
+        Assertions.assertThat(event.headSha).isEqualTo(expected.pullRequest.head.sha)
+        Assertions.assertThat(event.mergeCommitSha).isEqualTo(expected.pullRequest.mergeCommitSha)
+        Assertions.assertThat(event.baseRepository).isNotNull()
+        Assertions.assertThat(event.baseRepository!!.htmlUrl).isEqualTo(expected.pullRequest.base.repo.htmlUrl)
+        Assertions.assertThat(event.baseRepository!!.cloneUrl).isEqualTo(expected.pullRequest.base.repo.cloneUrl)
+        Assertions.assertThat(event.baseRepository!!.owner.login).isEqualTo(expected.pullRequest.base.repo.owner.login)
+    }
+
     private fun getTestFile(path: String): File {
         val root = File("src/test/resources")
         return File(root, path)
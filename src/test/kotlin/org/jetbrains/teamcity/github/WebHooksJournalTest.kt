@@ -0,0 +1,198 @@
+package org.jetbrains.teamcity.github
+
+import jetbrains.buildServer.util.FileUtil
+import org.assertj.core.api.BDDAssertions.then
+import org.jetbrains.teamcity.github.controllers.Status
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+import java.io.File
+import java.nio.file.Files
+import java.util.*
+
+class WebHooksJournalTest {
+    private lateinit var myDir: File
+
+    @BeforeMethod
+    fun setUp() {
+        myDir = Files.createTempDirectory("webhooks-journal").toFile()
+    }
+
+    @AfterMethod
+    fun tearDown() {
+        FileUtil.delete(myDir)
+    }
+
+    @Test
+    fun testReplay() {
+        val journal = WebHooksJournal(File(myDir, "webhooks.journal"), "node1")
+        val first = hook(1)
+        val second = hook(2)
+        journal.added(first)
+        journal.added(second)
+        first.status = Status.OK
+        journal.statusChanged(first)
+        first.lastUsed = Date(100)
+        journal.lastUsedChanged(first)
+        first.updateBranchRevision("refs/heads/master", "abc")
+        journal.branchesChanged(first, listOf("refs/heads/master"))
+        journal.deleted(second)
+        journal.flush()
+
+        val data = HashMap<RepoKey, MutableList<WebHookInfo>>()
+        then(WebHooksJournal(File(myDir, "webhooks.journal"), "node1").replay(data)).isEqualTo(6)
+        val hooks = data[RepoKey.of("github.com", "owner", "repo")]
+        then(hooks).containsOnly(first)
+        val replayed = hooks!!.first()
+        then(replayed.status).isEqualTo(Status.OK)
+        then(replayed.lastUsed).isEqualTo(Date(100))
+        then(replayed.lastBranchRevisions).isEqualTo(mapOf("refs/heads/master" to "abc"))
+    }
+
+    @Test
+    fun testRotatedJournalReplayedBeforeCurrent() {
+        val journal = WebHooksJournal(File(myDir, "webhooks.journal"), "node1")
+        val hook = hook(1)
+        journal.added(hook)
+        hook.status = Status.MISSING
+        journal.statusChanged(hook)
+        journal.rotate()
+        hook.status = Status.OK
+        journal.statusChanged(hook)
+        journal.flush()
+        then(journal.size).isEqualTo(1)
+
+        val data = HashMap<RepoKey, MutableList<WebHookInfo>>()
+        journal.replay(data)
+        then(data.values.flatten().single().status).isEqualTo(Status.OK)
+
+        journal.compacted()
+        data.clear()
+        journal.replay(data)
+        then(data).isEmpty()
+    }
+
+    @Test
+    fun testPartiallyWrittenRecordSkipped() {
+        val file = File(myDir, "webhooks.journal")
+        val journal = WebHooksJournal(file, "node1")
+        journal.added(hook(1))
+        journal.flush()
+        myDir.listFiles()!!.single().appendText("{\"op\":\"status\",\"url\":\"https://api.git")
+
+        val data = HashMap<RepoKey, MutableList<WebHookInfo>>()
+        then(WebHooksJournal(file, "node1").replay(data)).isEqualTo(1)
+        then(data.values.flatten()).hasSize(1)
+    }
+
+    @Test
+    fun testOutdatedRecordSkipped() {
+        val journal = WebHooksJournal(File(myDir, "webhooks.journal"), "node1")
+        val local = hook(1)
+        local.version = 5
+        local.status = Status.OK
+        journal.statusChanged(local)
+        journal.flush()
+
+        // Same hook modified later by another node
+        val stored = hook(1)
+        stored.version = 10
+        stored.status = Status.MISSING
+        val data = HashMap<RepoKey, MutableList<WebHookInfo>>()
+        data[stored.key.toMapKey()] = mutableListOf(stored)
+        then(journal.replay(data)).isEqualTo(0)
+        then(stored.status).isEqualTo(Status.MISSING)
+
+        then(local.mergeStored(stored)).isTrue()
+        then(local.status).isEqualTo(Status.MISSING)
+        then(local.version).isEqualTo(10)
+        then(stored.mergeStored(local)).isFalse()
+    }
+
+    @Test
+    fun testCompactionKeepsOtherNodesRecords() {
+        val file = File(myDir, "webhooks.journal")
+        val first = WebHooksJournal(file, "node1")
+        val second = WebHooksJournal(file, "node2")
+        first.added(hook(1))
+        first.flush()
+        second.added(hook(2))
+        second.flush()
+
+        first.rotate()
+        first.compacted()
+
+        val data = HashMap<RepoKey, MutableList<WebHookInfo>>()
+        WebHooksJournal(file, "node3").replay(data)
+        then(data.values.flatten().map { it.id }).containsExactly(2L)
+        then(first.exists()).isTrue()
+    }
+
+    @Test
+    fun testHookDeletedByOtherNodeNotRestored() {
+        val file = File(myDir, "webhooks.journal")
+        val hook = hook(1)
+        hook.version = 5
+        // Segment of 'node2' is replayed after one of 'node1', but deletion is newer than addition
+        val second = WebHooksJournal(file, "node2")
+        second.added(hook)
+        second.flush()
+        hook.version = 7
+        val first = WebHooksJournal(file, "node1")
+        first.deleted(hook)
+        first.flush()
+
+        val data = HashMap<RepoKey, MutableList<WebHookInfo>>()
+        WebHooksJournal(file, "node3").replay(data)
+        then(data).isEmpty()
+    }
+
+    @Test
+    fun testRecordsIncludedIntoSnapshotNotReplayed() {
+        val file = File(myDir, "webhooks.journal")
+        val first = WebHooksJournal(file, "node1")
+        val second = WebHooksJournal(file, "node2")
+        second.added(hook(1))
+        second.flush()
+
+        // Node compacts journal: hook added by another node is included into snapshot, but deleted afterwards
+        val data = HashMap<RepoKey, MutableList<WebHookInfo>>()
+        then(first.replay(data)).isEqualTo(1)
+        val offsets = first.getOffsets()
+        data.clear()
+
+        then(WebHooksJournal(file, "node3").replay(data, offsets)).isEqualTo(0)
+        then(data).isEmpty()
+    }
+
+    @Test
+    fun testReadNewRecordsOfOtherNodes() {
+        val file = File(myDir, "webhooks.journal")
+        val first = WebHooksJournal(file, "node1")
+        val second = WebHooksJournal(file, "node2")
+        val hook = hook(1)
+        first.added(hook)
+        first.replay(HashMap())
+        then(first.readNew()).isEmpty()
+
+        hook.version = 10
+        hook.status = Status.OK
+        second.statusChanged(hook)
+        second.flush()
+        first.added(hook(2))
+        first.flush()
+
+        val records = first.readNew()
+        then(records).hasSize(1)
+        then(first.getRepoKeys(records)).containsExactly(RepoKey.of("github.com", "owner", "repo"))
+        val local = hook(1)
+        val data = HashMap<RepoKey, MutableList<WebHookInfo>>()
+        data[local.key.toMapKey()] = mutableListOf(local)
+        then(first.apply(records, data)).isEqualTo(1)
+        then(local.status).isEqualTo(Status.OK)
+        then(first.readNew()).isEmpty()
+    }
+
+    private fun hook(id: Long) = WebHookInfo("https://api.github.com/repos/owner/repo/hooks/$id", "http://teamcity/app/hooks/github/key$id",
+                                             status = Status.WAITING_FOR_SERVER_RESPONSE)
+}
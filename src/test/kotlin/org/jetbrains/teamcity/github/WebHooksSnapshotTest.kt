@@ -0,0 +1,84 @@
+package org.jetbrains.teamcity.github
+
+import com.google.gson.JsonObject
+import org.assertj.core.api.BDDAssertions.then
+import org.jetbrains.teamcity.github.controllers.Status
+import org.testng.annotations.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.util.*
+
+class WebHooksSnapshotTest {
+    private val LOG = Util.getLogger(WebHooksSnapshotTest::class.java)
+
+    @Test
+    fun testHooksRoundTrip() {
+        val hooks = listOf(
+                WebHookInfo("https://api.github.com/repos/owner/repo/hooks/1", "http://teamcity/app/hooks/github/pub1", status = Status.OK, lastUsed = Date(10),
+                            lastBranchRevisions = mutableMapOf("refs/heads/master" to "2b9f0f7e7c3d5d8c21a0a3a2b3e4f5a6b7c8d9e0", "1" to "2")),
+                WebHookInfo("https://ghe.local/api/v3/repos/owner/repo/hooks/2", "http://teamcity/app/hooks/github/pub2", status = Status.WAITING_FOR_SERVER_RESPONSE),
+                WebHookInfo("http://server/api/v3/repos/owner/repo/hooks/10", "__CALLBACK_URL__", id = 10, status = Status.MISSING)
+        )
+        hooks[0].version = 1500000000000L
+        val output = ByteArrayOutputStream()
+        WebHooksSnapshot.write(hooks, output)
+        val read = WebHooksSnapshot.read(ByteArrayInputStream(output.toByteArray()))!!
+        then(read).isEqualTo(hooks)
+        for ((first, second) in hooks.zip(read)) {
+            then(second.key).isEqualTo(first.key)
+            then(second.status).isEqualTo(first.status)
+            then(second.lastUsed).isEqualTo(first.lastUsed)
+            then(second.lastBranchRevisions).isEqualTo(first.lastBranchRevisions)
+            then(second.version).isEqualTo(first.version)
+        }
+    }
+
+    @Test
+    fun testUnknownFormatIsNotRead() {
+        then(WebHooksSnapshot.read(ByteArrayInputStream(byteArrayOf(0, 0, 0, 1, 1)))).isNull()
+    }
+
+    /**
+     * Compares load time and size of JSON (version 1) and binary snapshots.
+     * Not a part of regular test run, see 'benchmark' group exclusion in build.gradle
+     */
+    @Test(groups = ["benchmark"])
+    fun benchmark100kHooks() {
+        val random = Random(42)
+        val hooks = (1..100000).map { i ->
+            val server = if (i % 10 == 0) "ghe${i % 3}.example.com" else "github.com"
+            val api = if (server == "github.com") "https://api.github.com" else "https://$server/api/v3"
+            val revision = { String.format("%040x", random.nextLong() and Long.MAX_VALUE) }
+            WebHookInfo("$api/repos/owner${i % 500}/repo$i/hooks/${1000000L + i}",
+                        "https://teamcity.example.com/app/hooks/github/${UUID.randomUUID()}",
+                        status = Status.OK, lastUsed = Date(1500000000000L + i),
+                        lastBranchRevisions = mutableMapOf("refs/heads/master" to revision(), "refs/pull/$i/head" to revision()))
+        }
+
+        val json = WebHooksStorage.gson.toJson(WebHooksStorage.getJsonObjectFromData(hooks)).toByteArray(Charsets.UTF_8)
+        val binary = ByteArrayOutputStream().also { WebHooksSnapshot.write(hooks, it) }.toByteArray()
+
+        // Warm up
+        readJson(json)
+        WebHooksSnapshot.read(ByteArrayInputStream(binary))
+
+        var start = System.nanoTime()
+        val fromJson = readJson(json)
+        val jsonMs = (System.nanoTime() - start) / 1000000
+        start = System.nanoTime()
+        val fromBinary = WebHooksSnapshot.read(ByteArrayInputStream(binary))!!
+        val binaryMs = (System.nanoTime() - start) / 1000000
+
+        LOG.info("100k hooks: JSON v1 ${json.size / 1024} KB loaded in $jsonMs ms, binary v${WebHooksSnapshot.VERSION} ${binary.size / 1024} KB loaded in $binaryMs ms")
+
+        then(fromJson.values.sumOf { it.size }).isEqualTo(hooks.size)
+        then(fromBinary).hasSameSizeAs(hooks)
+        then(fromBinary.toHashSet()).isEqualTo(hooks.toHashSet())
+        then(binary.size).isLessThan(json.size / 2)
+    }
+
+    private fun readJson(bytes: ByteArray): Map<RepoKey, List<WebHookInfo>> {
+        val obj = ByteArrayInputStream(bytes).reader(Charsets.UTF_8).use { WebHooksStorage.gson.fromJson(it, JsonObject::class.java) }
+        return WebHooksStorage.getDataFromJsonObject(obj)!!
+    }
+}
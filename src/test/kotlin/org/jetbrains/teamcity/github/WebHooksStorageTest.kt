@@ -24,13 +24,13 @@ class WebHooksStorageTest {
 
     @Test
     fun testMapKeyInAMap() {
-        val key1 = RepoKey("GitHub.com", RepositoryId.create("OwNer", "nAMe"))
-        val key2 = RepoKey("github.com", RepositoryId.create("owner", "name"))
-        val key3 = RepoKey("GITHUB.com", RepositoryId.create("Owner", "Name"))
+        val key1 = RepoKey.of("GitHub.com", RepositoryId.create("OwNer", "nAMe"))
+        val key2 = RepoKey.of("github.com", RepositoryId.create("owner", "name"))
+        val key3 = RepoKey.of("GITHUB.com", RepositoryId.create("Owner", "Name"))
 
-        val key4_incorrect = RepoKey("GitHub_WRONG.com", RepositoryId.create("OwNer", "nAMe"))
-        val key5_incorrect = RepoKey("GitHub.com", RepositoryId.create("OwNer_WRONG", "nAMe"))
-        val key6_incorrect = RepoKey("GitHub.com", RepositoryId.create("OwNer", "nAMe_WRONG"))
+        val key4_incorrect = RepoKey.of("GitHub_WRONG.com", RepositoryId.create("OwNer", "nAMe"))
+        val key5_incorrect = RepoKey.of("GitHub.com", RepositoryId.create("OwNer_WRONG", "nAMe"))
+        val key6_incorrect = RepoKey.of("GitHub.com", RepositoryId.create("OwNer", "nAMe_WRONG"))
 
         val m = hashMapOf(key1 to "something");
         then(m.contains(key1)).isTrue();
@@ -45,6 +45,15 @@ class WebHooksStorageTest {
         then(m.contains(key6_incorrect)).isFalse();
     }
 
+    @Test
+    fun testCanonicalKeys() {
+        val key = RepoKey.of("github.com/", "Owner", "Name")
+        then(RepoKey.of("GitHub.com", RepositoryId.create("owner", "name"))).isSameAs(key)
+        then(GitHubRepositoryInfo("github.com", "OWNER", "name").toRepoKey.of()).isSameAs(key)
+        then(HookKey.fromHookUrl("https://api.github.com/repos/owner/name/hooks/1").toMapKey()).isSameAs(key)
+        then(RepoKey.of("github.com", "owner", "other")).isNotSameAs(key).isNotEqualTo(key)
+    }
+
     @Test
     fun testHookInfoSerialization() {
         doHookInfoSerializationTest(WebHookInfo("http://server/api/v3/repos/owner/repo/hooks/10", callbackUrl = callback, id = 10, status = Status.OK))
@@ -92,7 +101,7 @@ class WebHooksStorageTest {
 
         val map = WebHooksStorage.getDataFromJsonObject(obj)
         then(map).isNotNull()
-        val key = RepoKey("server", "owner", "repo")
+        val key = RepoKey.of("server", "owner", "repo")
         then(map!!).containsOnlyKeys(key)
         then(map[key]).containsOnly(hook)
     }
@@ -126,9 +135,11 @@ class WebHooksStorageTest {
     }
 
     fun doKeyTest(server: String, owner: String, name: String, expectedKey: String) {
-        val key = RepoKey(server, RepositoryId.create(owner, name))
-        then(key.toString()).isEqualTo(expectedKey)
-        val (a, b, c) = key
-        then(Triple(a, b, c)).isEqualTo(Triple(server.trimEnd('/'), owner, name))
+        val key = RepoKey.of(server, RepositoryId.create(owner, name))
+        // Case of repository key was first obtained for is kept
+        then(key.toString()).isEqualToIgnoringCase(expectedKey)
+        then(key.server).isEqualToIgnoringCase(server.trimEnd('/'))
+        then(key.owner).isEqualToIgnoringCase(owner)
+        then(key.name).isEqualToIgnoringCase(name)
     }
 }
\ No newline at end of file
@@ -14,8 +14,39 @@ class HMacUtilTest {
         doHMacTest(byteArrayOf('c'.toByte()), byteArrayOf('d'.toByte()), "sha1=02c036866544771126771380f2184d40148c4d3c")
     }
 
+    @Test
+    fun testPooledMacSignatures() {
+        val message = "The quick brown fox jumps over the lazy dog".toByteArray()
+        doPooledHMacTest("key", message, "sha1=de7c9b85b8b78aa6bc8a7a36f70a90701c9db4d9")
+        doPooledHMacTest("key", message, "sha256=f7bc83f430538424b13298e6aa6fb143ef4d59a14946175997479dbc2d1a3cd8")
+        // Pooled instance should be reset after use
+        doPooledHMacTest("key", message, "sha256=f7bc83f430538424b13298e6aa6fb143ef4d59a14946175997479dbc2d1a3cd8")
+    }
+
+    @Test
+    fun testMalformedSignature() {
+        Assert.assertNull(HMacUtil.parseSignature("md5=8b6ff74fa7182a90ac20616816f7b8814a429f7c"))
+        Assert.assertNull(HMacUtil.parseSignature("sha1=not-a-hex"))
+        Assert.assertNotNull(HMacUtil.parseSignature("sha1=8b6ff74fa7182a90ac20616816f7b8814a429f7c"))
+    }
+
+    private fun doPooledHMacTest(key: String, message: ByteArray, expected: String) {
+        val signature = HMacUtil.parseSignature(expected)
+        Assert.assertNotNull(signature)
+        val matches = HMacUtil.withMac("public", key, signature!!.algorithm) { mac ->
+            // Feed message in chunks as it's done while reading request body
+            mac.update(message, 0, 10)
+            mac.update(message, 10, message.size - 10)
+            signature.matches(mac.doFinal())
+        }
+        Assert.assertTrue(matches, "Signature $expected expected")
+    }
+
     private fun doHMacTest(key: ByteArray, message: ByteArray, expected: String) {
-        val signature = HMacUtil.calculateHMac(message, key)
+        val secret = key.toString(Charsets.UTF_8)
+        val signature = HMacUtil.withMac("public-$secret", secret, HMacUtil.HMAC_Algorithm) { mac ->
+            HMacUtil.Signature(HMacUtil.HMAC_Algorithm, mac.doFinal(message)).toString()
+        }
         println("Signature for key '${key.toString(Charset.defaultCharset())}', message '${message.toString(Charset.defaultCharset())}' is $signature")
         Assert.assertEquals(signature, expected)
     }
@@ -0,0 +1,34 @@
+package org.jetbrains.teamcity.github.controllers
+
+import org.assertj.core.api.BDDAssertions.then
+import org.testng.annotations.Test
+import java.util.concurrent.TimeUnit
+
+class RecentDeliveriesTest {
+    @Test
+    fun testDuplicatesSuppressed() {
+        val deliveries = RecentDeliveries(100, 1, TimeUnit.HOURS)
+        then(deliveries.markSeen("72d3162e-cc78-11e3-81ab-4c9367dc0958")).isTrue()
+        then(deliveries.markSeen("72d3162e-cc78-11e3-81ab-4c9367dc0958")).isFalse()
+        then(deliveries.markSeen("72d3162e-cc78-11e3-81ab-4c9367dc0959")).isTrue()
+        then(deliveries.suppressed).isEqualTo(1)
+    }
+
+    @Test
+    fun testForgottenDeliveryAcceptedAgain() {
+        val deliveries = RecentDeliveries(100, 1, TimeUnit.HOURS)
+        then(deliveries.markSeen("id")).isTrue()
+        deliveries.forget("id")
+        then(deliveries.markSeen("id")).isTrue()
+        then(deliveries.suppressed).isEqualTo(0)
+    }
+
+    @Test
+    fun testSizeIsBounded() {
+        val deliveries = RecentDeliveries(10, 1, TimeUnit.HOURS)
+        for (i in 1..100) {
+            deliveries.markSeen("id-$i")
+        }
+        then(deliveries.size).isLessThanOrEqualTo(10)
+    }
+}
@@ -0,0 +1,78 @@
+package org.jetbrains.teamcity.github.controllers
+
+import jetbrains.buildServer.serverSide.BuildServerListener
+import jetbrains.buildServer.util.EventDispatcher
+import org.assertj.core.api.BDDAssertions.then
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class WebHookDeliveryQueueTest {
+    private lateinit var dispatcher: EventDispatcher<BuildServerListener>
+    private lateinit var queue: WebHookDeliveryQueue
+
+    @BeforeMethod
+    fun setUp() {
+        System.setProperty(WebHookDeliveryQueue.CAPACITY_PROPERTY, "2")
+        System.setProperty(WebHookDeliveryQueue.THREADS_PROPERTY, "1")
+        dispatcher = EventDispatcher.create(BuildServerListener::class.java)
+        queue = WebHookDeliveryQueue(dispatcher)
+        queue.init()
+    }
+
+    @AfterMethod
+    fun tearDown() {
+        queue.destroy()
+        System.clearProperty(WebHookDeliveryQueue.CAPACITY_PROPERTY)
+        System.clearProperty(WebHookDeliveryQueue.THREADS_PROPERTY)
+    }
+
+    @Test
+    fun testBoundedQueueDrainedOnShutdown() {
+        val started = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val threads = Collections.synchronizedList(ArrayList<String>())
+        val task = {
+            threads.add(Thread.currentThread().name)
+            started.countDown()
+            release.await(10, TimeUnit.SECONDS)
+            Unit
+        }
+
+        // First delivery is taken by worker, next two fill the queue
+        then(queue.offer("delivery 1", task)).isTrue()
+        then(started.await(10, TimeUnit.SECONDS)).isTrue()
+        then(queue.offer("delivery 2", task)).isTrue()
+        then(queue.offer("delivery 3", task)).isTrue()
+        then(queue.offer("delivery 4", task)).isFalse()
+
+        var statistics = queue.getStatistics()
+        then(statistics.depth).isEqualTo(2)
+        then(statistics.accepted).isEqualTo(3)
+        then(statistics.rejected).isEqualTo(1)
+
+        // Queued deliveries are processed before shutdown completes
+        release.countDown()
+        dispatcher.multicaster.serverShutdown()
+
+        statistics = queue.getStatistics()
+        then(statistics.depth).isEqualTo(0)
+        then(statistics.processed).isEqualTo(3)
+        then(statistics.failed).isEqualTo(0)
+        then(threads).hasSize(3).allMatch { it.startsWith("GitHub Webhooks Delivery") }
+
+        then(queue.offer("delivery 5", task)).isFalse()
+    }
+
+    @Test
+    fun testFailedDeliveryCounted() {
+        then(queue.offer("failing delivery") { throw IllegalStateException("Cannot process") }).isTrue()
+        dispatcher.multicaster.serverShutdown()
+
+        then(queue.getStatistics().processed).isEqualTo(1)
+        then(queue.getStatistics().failed).isEqualTo(1)
+    }
+}
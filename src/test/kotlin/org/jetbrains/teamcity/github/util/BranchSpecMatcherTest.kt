@@ -0,0 +1,37 @@
+package org.jetbrains.teamcity.github.util
+
+import org.assertj.core.api.BDDAssertions.then
+import org.testng.annotations.Test
+
+class BranchSpecMatcherTest {
+    @Test
+    fun testDefaultBranch() {
+        then(BranchSpecMatcher.matches("refs/heads/master", null, "refs/heads/master")).isTrue()
+        then(BranchSpecMatcher.matches("master", "", "refs/heads/master")).isTrue()
+        then(BranchSpecMatcher.matches("refs/heads/master", null, "refs/heads/feature")).isFalse()
+        then(BranchSpecMatcher.matches("refs/heads/master", null, "refs/tags/v1.0")).isFalse()
+    }
+
+    @Test
+    fun testBranchSpec() {
+        val spec = "+:refs/heads/release/*\n+:(feature-*)\n-:refs/heads/release/old\n+:<default>"
+        then(BranchSpecMatcher.matches("refs/heads/master", spec, "refs/heads/release/1.0")).isTrue()
+        then(BranchSpecMatcher.matches("refs/heads/master", spec, "refs/heads/feature-1")).isTrue()
+        then(BranchSpecMatcher.matches("refs/heads/master", spec, "refs/heads/master")).isTrue()
+        then(BranchSpecMatcher.matches("refs/heads/master", spec, "refs/heads/experiment/foo")).isFalse()
+        then(BranchSpecMatcher.matches("refs/heads/master", spec, "refs/tags/release/1.0")).isFalse()
+        then(BranchSpecMatcher.matches("refs/heads/master", "+:refs/heads/a.b", "refs/heads/aXb")).isFalse()
+    }
+
+    @Test
+    fun testExcludedRefsAreConservativelyMatched() {
+        then(BranchSpecMatcher.matches("refs/heads/master", "+:*\n-:refs/heads/old", "refs/heads/old")).isTrue()
+    }
+
+    @Test
+    fun testParameterReferencesMatchEverything() {
+        then(BranchSpecMatcher.matches("%branch%", null, "refs/heads/any")).isTrue()
+        then(BranchSpecMatcher.matches("refs/heads/master", "+:%spec%", "refs/heads/any")).isTrue()
+        then(BranchSpecMatcher.matches(null, null, "refs/heads/any")).isTrue()
+    }
+}
@@ -0,0 +1,62 @@
+package org.jetbrains.teamcity.github.util
+
+import org.assertj.core.api.BDDAssertions.then
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+
+class ChangesCheckCoalescerTest {
+    private lateinit var scheduler: ScheduledExecutorService
+    private val checks = CopyOnWriteArrayList<Pair<String, List<String>>>()
+    private val coalescer by lazy { ChangesCheckCoalescer<String, String>(scheduler) { key, roots -> checks.add(key to roots.toList()) } }
+
+    @BeforeMethod
+    fun setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor()
+        checks.clear()
+    }
+
+    @AfterMethod
+    fun tearDown() {
+        scheduler.shutdownNow()
+    }
+
+    @Test
+    fun testRequestsInWindowCheckedOnce() {
+        coalescer.schedule("repo", listOf("a"), 200, 5000)
+        coalescer.schedule("repo", listOf("b", "a"), 200, 5000)
+        coalescer.schedule("other", listOf("x"), 200, 5000)
+        coalescer.schedule("repo", listOf("c"), 200, 5000)
+
+        waitFor { checks.size >= 2 }
+        Thread.sleep(300)
+        then(checks).containsExactlyInAnyOrder("repo" to listOf("a", "b", "c"), "other" to listOf("x"))
+    }
+
+    @Test
+    fun testFirstRequestNotDelayedMoreThanMaxDelay() {
+        val started = System.currentTimeMillis()
+        // Each request comes within window of previous one, but check should not wait for them to stop
+        while (checks.isEmpty() && System.currentTimeMillis() - started < 5000) {
+            coalescer.schedule("repo", listOf("a"), 100, 300)
+            Thread.sleep(20)
+        }
+        then(checks).hasSize(1)
+        then(System.currentTimeMillis() - started).isLessThan(2000)
+
+        coalescer.schedule("repo", listOf("b"), 100, 300)
+        waitFor { checks.size == 2 }
+        then(checks.last()).isEqualTo("repo" to listOf("b"))
+    }
+
+    private fun waitFor(condition: () -> Boolean) {
+        val started = System.currentTimeMillis()
+        while (!condition()) {
+            if (System.currentTimeMillis() - started > 5000) throw AssertionError("Condition was not met in 5 seconds")
+            Thread.sleep(10)
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.jetbrains.teamcity.github.util
+
+import org.assertj.core.api.BDDAssertions.then
+import org.jetbrains.teamcity.github.Util
+import org.testng.annotations.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class StorageWarmUpTest {
+    private val LOG = Util.getLogger(StorageWarmUpTest::class.java)
+
+    @Test
+    fun testTasksRunInParallelAfterPreparation() {
+        val executor = Executors.newFixedThreadPool(4)
+        try {
+            val warmUp = StorageWarmUp("test storage", executor, LOG)
+            val prepared = AtomicInteger()
+            val loaded = AtomicInteger()
+            // Each task waits for all others, so warm-up completes only if they run in parallel
+            val latch = CountDownLatch(3)
+            val tasks = (1..3).map {
+                {
+                    then(prepared.get()).isEqualTo(1)
+                    latch.countDown()
+                    latch.await(10, TimeUnit.SECONDS)
+                    loaded.incrementAndGet()
+                    Unit
+                }
+            }
+            val readyActions = AtomicInteger()
+            warmUp.whenReady { readyActions.incrementAndGet() }
+
+            warmUp.start({ prepared.incrementAndGet() }, tasks) { "${loaded.get()} loaded" }
+
+            then(warmUp.await(10, TimeUnit.SECONDS)).isTrue()
+            then(warmUp.isReady).isTrue()
+            then(loaded.get()).isEqualTo(3)
+            then(readyActions.get()).isEqualTo(1)
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    @Test
+    fun testPreparedBeforeLoaded() {
+        val executor = Executors.newFixedThreadPool(2)
+        val release = CountDownLatch(1)
+        try {
+            val warmUp = StorageWarmUp("test storage", executor, LOG)
+            warmUp.start({}, listOf({ release.await(10, TimeUnit.SECONDS); Unit })) { "" }
+            then(warmUp.awaitPrepared(10, TimeUnit.SECONDS)).isTrue()
+            then(warmUp.isReady).isFalse()
+            release.countDown()
+            then(warmUp.await(10, TimeUnit.SECONDS)).isTrue()
+        } finally {
+            release.countDown()
+            executor.shutdownNow()
+        }
+    }
+
+    @Test
+    fun testReadyIfTaskFailed() {
+        val executor = Executors.newFixedThreadPool(2)
+        try {
+            val warmUp = StorageWarmUp("test storage", executor, LOG)
+            warmUp.start({ throw IllegalStateException("Cannot migrate") }, listOf({ throw IllegalStateException("Cannot load") }, {})) { "" }
+            then(warmUp.await(10, TimeUnit.SECONDS)).isTrue()
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+}